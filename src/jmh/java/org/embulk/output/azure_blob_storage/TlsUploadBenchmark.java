@@ -0,0 +1,144 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import org.embulk.config.ConfigSource;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * Stages blocks through {@link JettyBlobStore} over TLS with each {@code tls_provider}, and counts the CPU time
+ * of the process which the uploads take. Encryption of the TLS records dominates the CPU cost of large uploads.
+ *
+ * The blocks are staged to a blob in the container of AZURE_ACCOUNT_NAME, AZURE_ACCOUNT_KEY and AZURE_CONTAINER,
+ * which is deleted after each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TlsUploadBenchmark
+{
+    // "default" is the provider of the JDK
+    @Param({"default"})
+    public String tlsProvider;
+
+    @Param({"16777216"})
+    public int blockSize;
+
+    private BlobStore store;
+    private StagedBlock block;
+    private String blobName;
+    private int blockSequence;
+
+    /**
+     * Process CPU time and bytes sent in the iteration. CPU time per GB is {@code cpuNanos / bytes * 2^30}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCounters
+    {
+        public long cpuNanos;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            cpuNanos = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        String accountName = requiredEnv("AZURE_ACCOUNT_NAME");
+        String accountKey = requiredEnv("AZURE_ACCOUNT_KEY");
+        String container = requiredEnv("AZURE_CONTAINER");
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("account_name", accountName)
+                .set("account_key", accountKey)
+                .set("container", container)
+                .set("path_prefix", "embulk_tls_benchmark_")
+                .set("file_ext", "bin")
+                .set("http_transport", "JETTY");
+        if (!tlsProvider.equals("default")) {
+            config.set("tls_provider", tlsProvider);
+        }
+        PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setRunId(Optional.of(UUID.randomUUID().toString()));
+
+        CloudBlobClient client = AzureBlobStorageFileOutputPlugin.newAzureClient(accountName, accountKey);
+        store = BlockBlobFileOutput.newBlobStore(client, task);
+        blobName = task.getPathPrefix() + task.getRunId().get();
+
+        byte[] data = new byte[blockSize];
+        new Random(1).nextBytes(data);
+        block = new MemoryStagedBlock("benchmark", 0);
+        try (OutputStream out = block.getOutputStream()) {
+            out.write(data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        if (block != null) {
+            block.release();
+        }
+        if (store != null) {
+            // committing an empty list drops the staged blocks
+            store.commitBlockList(blobName, new ArrayList<BlockEntry>(), BlobAttributes.none());
+            store.delete(Collections.singletonList(blobName));
+            store.close();
+        }
+    }
+
+    @Benchmark
+    public void stageBlock(CpuCounters counters) throws Exception
+    {
+        String blockId = Base64.getEncoder().encodeToString(
+                String.format("benchmark-%010d", blockSequence++).getBytes(StandardCharsets.UTF_8));
+        long cpu = processCpuTime();
+        store.stageBlock(blobName, blockId, block);
+        counters.cpuNanos += processCpuTime() - cpu;
+        counters.bytes += block.length();
+    }
+
+    private static long processCpuTime()
+    {
+        // Jetty encrypts on its own threads, so the time of the calling thread isn't enough
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static String requiredEnv(String name)
+    {
+        String value = System.getenv(name);
+        if (value == null) {
+            throw new IllegalStateException("The benchmark requires environment variable " + name);
+        }
+        return value;
+    }
+}
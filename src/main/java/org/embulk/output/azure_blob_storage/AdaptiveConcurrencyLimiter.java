@@ -0,0 +1,71 @@
+package org.embulk.output.azure_blob_storage;
+
+/**
+ * AIMD (additive increase, multiplicative decrease) limit of concurrent upload requests.
+ *
+ * The limit grows by about one slot per window of successful requests, and is halved when the
+ * storage account responds with a throttling error. Decreases are applied at most once per
+ * {@code cooldownMillis} so that a burst of concurrent failures counts as one congestion event.
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    private final int maxLimit;
+    private final long cooldownMillis;
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseMillis;
+
+    /**
+     * @param maxLimit upper bound of the limit, or 0 not to have an upper bound
+     */
+    public AdaptiveConcurrencyLimiter(int maxLimit, long cooldownMillis)
+    {
+        this.maxLimit = maxLimit > 0 ? maxLimit : Integer.MAX_VALUE;
+        this.cooldownMillis = cooldownMillis;
+        this.limit = this.maxLimit;
+    }
+
+    public synchronized void acquire() throws InterruptedException
+    {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    public synchronized void release()
+    {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized void onSuccess()
+    {
+        if (limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+            notifyAll();
+        }
+    }
+
+    public synchronized void onThrottle()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastDecreaseMillis < cooldownMillis) {
+            return;
+        }
+        lastDecreaseMillis = now;
+        // without an upper bound the limit starts unbounded, so halve what is actually in flight
+        double current = Math.min(limit, Math.max(inFlight, 1));
+        limit = Math.max(1.0, current / 2);
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+}
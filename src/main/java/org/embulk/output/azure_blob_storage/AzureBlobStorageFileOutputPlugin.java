@@ -2,16 +2,22 @@ package org.embulk.output.azure_blob_storage;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobContainerPublicAccessType;
 import com.microsoft.azure.storage.blob.BlobType;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
+import org.eclipse.jetty.client.HttpClient;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileOutputPlugin;
+import org.embulk.spi.TempFileSpace;
 import org.embulk.spi.TransactionalFileOutput;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
@@ -21,9 +27,16 @@ import org.embulk.util.config.Task;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
 
 public class AzureBlobStorageFileOutputPlugin
         implements FileOutputPlugin
@@ -54,15 +67,292 @@ public class AzureBlobStorageFileOutputPlugin
         @ConfigDefault("10") // 10 times retry to connect Azure Blob Storage if failed.
         int getMaxConnectionRetry();
 
+        /**
+         * Retries which all requests of one task may spend in total. 0 means no budget.
+         */
+        @Config("retry_budget")
+        @ConfigDefault("100")
+        int getRetryBudget();
+
         /**
          * [BLOCK_BLOB | PAGE_BLOB | APPEND_BLOB | UNSPECIFIED]
          */
         @Config("blob_type")
         @ConfigDefault("\"UNSPECIFIED\"")
         String getBlobType();
+
+        /**
+         * Skip uploading a blob if the existing blob has the same MD5 checksum.
+         */
+        @Config("skip_unchanged")
+        @ConfigDefault("false")
+        boolean getSkipUnchanged();
+
+        /**
+         * Upper bound of concurrent upload requests to the account from this JVM. 0 means no upper bound.
+         * The actual limit is halved on throttling responses and grows again on success.
+         */
+        @Config("max_concurrent_uploads")
+        @ConfigDefault("0")
+        int getMaxConcurrentUploads();
+        void setMaxConcurrentUploads(int maxConcurrentUploads);
+
+        /**
+         * Upload bandwidth cap in bytes per second shared by all tasks in this JVM.
+         */
+        @Config("max_bandwidth")
+        @ConfigDefault("null")
+        Optional<Long> getMaxBandwidth();
+
+        @Config("max_requests_per_second")
+        @ConfigDefault("null")
+        Optional<Double> getMaxRequestsPerSecond();
+
+        /**
+         * Bytes of heap memory which BLOCK_BLOB staging may use in this JVM. Blocks spill to temp files
+         * when it runs out. 0 stages all blocks into temp files.
+         */
+        @Config("staging_memory_budget")
+        @ConfigDefault("0")
+        long getStagingMemoryBudget();
+        void setStagingMemoryBudget(long stagingMemoryBudget);
+
+        /**
+         * Blocks staged in memory keep the buffers given by the formatter instead of copying them,
+         * and send them as they are.
+         */
+        @Config("keep_buffers")
+        @ConfigDefault("false")
+        boolean getKeepBuffers();
+
+        /**
+         * Size of each BLOCK_BLOB block in bytes.
+         */
+        @Config("block_size")
+        @ConfigDefault("94371840")
+        int getBlockSize();
+        void setBlockSize(int blockSize);
+
+        /**
+         * Failed attempts of a whole block after which it is uploaded as sub-blocks of sub_block_size. 0 disables it.
+         */
+        @Config("sub_block_fallback_after")
+        @ConfigDefault("3")
+        int getSubBlockFallbackAfter();
+
+        @Config("sub_block_size")
+        @ConfigDefault("8388608")
+        int getSubBlockSize();
+
+        /**
+         * Measure the upload throughput before the run and pick block_size, max_concurrent_uploads and
+         * staging_memory_budget, unless they are configured. The result is stored in the config diff.
+         */
+        @Config("calibrate")
+        @ConfigDefault("false")
+        boolean getCalibrate();
+
+        @Config("calibration_bytes")
+        @ConfigDefault("67108864")
+        long getCalibrationBytes();
+
+        /**
+         * Throughput measured by the last calibration. Set from the config diff of the previous run.
+         */
+        @Config("calibrated_bytes_per_sec")
+        @ConfigDefault("null")
+        Optional<Long> getCalibratedBytesPerSec();
+
+        @Config("calibrated_block_size")
+        @ConfigDefault("null")
+        Optional<Integer> getCalibratedBlockSize();
+
+        /**
+         * 0 means that the throughput still grew at the highest concurrency measured, so uploads are not capped.
+         */
+        @Config("calibrated_max_concurrent_uploads")
+        @ConfigDefault("null")
+        Optional<Integer> getCalibratedMaxConcurrentUploads();
+
+        @Config("calibrated_staging_memory_budget")
+        @ConfigDefault("null")
+        Optional<Long> getCalibratedStagingMemoryBudget();
+
+        /**
+         * BLOCK_BLOB files up to this size are buffered in memory and sent with one Put Blob request
+         * instead of Put Block and Put Block List. 0 always uses blocks.
+         */
+        @Config("single_put_threshold")
+        @ConfigDefault("4194304")
+        long getSinglePutThreshold();
+
+        /**
+         * Append all files of a task to one BLOCK_BLOB as segments, with an index of their offsets.
+         */
+        @Config("pack_files")
+        @ConfigDefault("false")
+        boolean getPackFiles();
+
+        /**
+         * Local directories to spread temp files across. Empty uses Embulk's temp file space.
+         */
+        @Config("temp_dirs")
+        @ConfigDefault("[]")
+        List<String> getTempDirs();
+
+        /**
+         * [ROUND_ROBIN | FREE_SPACE]
+         */
+        @Config("temp_dir_selection")
+        @ConfigDefault("\"ROUND_ROBIN\"")
+        String getTempDirSelection();
+
+        /**
+         * Write a manifest of all committed blobs and a _SUCCESS marker after all tasks finish.
+         */
+        @Config("write_manifest")
+        @ConfigDefault("false")
+        boolean getWriteManifest();
+
+        /**
+         * [JSON | CSV]
+         */
+        @Config("manifest_format")
+        @ConfigDefault("\"JSON\"")
+        String getManifestFormat();
+
+        /**
+         * [DISCARD | STAGE_ONLY | FULL]
+         */
+        @Config("dry_run")
+        @ConfigDefault("\"FULL\"")
+        String getDryRun();
+
+        /**
+         * Identifier of this run. Generated when not set.
+         */
+        @Config("run_id")
+        @ConfigDefault("null")
+        Optional<String> getRunId();
+        void setRunId(Optional<String> runId);
+
+        /**
+         * Delete the blobs uploaded by this run if the run fails.
+         */
+        @Config("delete_on_failure")
+        @ConfigDefault("false")
+        boolean getDeleteOnFailure();
+
+        /**
+         * Commit the blocks uploaded so far at this interval in seconds, so that readers see the blob while it is being written.
+         */
+        @Config("commit_interval")
+        @ConfigDefault("null")
+        Optional<Long> getCommitInterval();
+
+        /**
+         * Commit the blocks uploaded so far each time this many bytes are uploaded.
+         */
+        @Config("commit_interval_bytes")
+        @ConfigDefault("null")
+        Optional<Long> getCommitIntervalBytes();
+
+        /**
+         * Interval in seconds of progress logs. 0 disables them.
+         */
+        @Config("progress_interval")
+        @ConfigDefault("30")
+        long getProgressInterval();
+
+        /**
+         * Expected total size of the output, used to log the ETA.
+         */
+        @Config("progress_total_bytes")
+        @ConfigDefault("null")
+        Optional<Long> getProgressTotalBytes();
+
+        /**
+         * Extra destinations which receive the same blobs.
+         */
+        @Config("destinations")
+        @ConfigDefault("[]")
+        List<Destination> getDestinations();
+
+        /**
+         * ALL: fail if any destination fails. PRIMARY: only the primary destination must succeed.
+         */
+        @Config("destination_failure_policy")
+        @ConfigDefault("\"ALL\"")
+        String getDestinationFailurePolicy();
+
+        /**
+         * Split blobs into blocks at content-defined boundaries and upload only the blocks which the existing blob doesn't have.
+         */
+        @Config("delta_upload")
+        @ConfigDefault("false")
+        boolean getDeltaUpload();
+
+        /**
+         * Write files through the Data Lake Storage Gen2 endpoint into a staging directory, and publish it by renaming it.
+         */
+        @Config("use_dfs_endpoint")
+        @ConfigDefault("false")
+        boolean getUseDfsEndpoint();
+
+        /**
+         * SDK: send blocks with the storage SDK. JETTY: send Put Block, Put Blob and Put Block List with the pooled Jetty client.
+         */
+        @Config("http_transport")
+        @ConfigDefault("\"SDK\"")
+        String getHttpTransport();
+
+        @Config("http_max_connections")
+        @ConfigDefault("64")
+        int getHttpMaxConnections();
+
+        @Config("http_connect_timeout")
+        @ConfigDefault("15000")
+        long getHttpConnectTimeout();
+
+        @Config("http_idle_timeout")
+        @ConfigDefault("60000")
+        long getHttpIdleTimeout();
+
+        @Config("http_request_timeout")
+        @ConfigDefault("300000")
+        long getHttpRequestTimeout();
+
+        @Config("http_buffer_size")
+        @ConfigDefault("65536")
+        int getHttpBufferSize();
+
+        /**
+         * Name of an installed security provider, or class name of a {@code java.security.Provider}, for TLS.
+         */
+        @Config("tls_provider")
+        @ConfigDefault("null")
+        Optional<String> getTlsProvider();
+
+        /**
+         * TLS cipher suites in the order of preference. Suites which the provider doesn't support are ignored.
+         */
+        @Config("tls_cipher_suites")
+        @ConfigDefault("[]")
+        List<String> getTlsCipherSuites();
+
+        /**
+         * Blob index tags of each committed BLOCK_BLOB. Values may contain ${run_id}, ${task_index}, ${file_index},
+         * ${blob_name} and ${bytes}.
+         */
+        @Config("blob_tags")
+        @ConfigDefault("{}")
+        Map<String, String> getBlobTags();
     }
 
     private static final Logger log =  LoggerFactory.getLogger(AzureBlobStorageFileOutputPlugin.class);
+    private static final int DELETE_CONCURRENCY = 16;
+    // concurrency to probe stored settings with when max_concurrent_uploads is unbounded
+    private static final int CALIBRATION_PROBE_CONCURRENCY = 4;
 
     public static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory
         .builder()
@@ -75,37 +365,432 @@ public class AzureBlobStorageFileOutputPlugin
                                   FileOutputPlugin.Control control)
     {
         PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        // validate enum options before running tasks
+        StripedTempFileSpace.Selection.of(task.getTempDirSelection());
+        ManifestWriter.Format.of(task.getManifestFormat());
+        DryRun dryRun = DryRun.of(task.getDryRun());
+        DestinationFailurePolicy.of(task.getDestinationFailurePolicy());
+        if (!task.getHttpTransport().equalsIgnoreCase("SDK") && !task.getHttpTransport().equalsIgnoreCase("JETTY")) {
+            throw new ConfigException("http_transport must be SDK or JETTY: " + task.getHttpTransport());
+        }
+        if (task.getHttpMaxConnections() <= 0) {
+            throw new ConfigException("http_max_connections must be positive");
+        }
+        if (!new BlobTags(task.getBlobTags()).isEmpty()) {
+            if (BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB || task.getUseDfsEndpoint()) {
+                throw new ConfigException("blob_tags requires blob_type: BLOCK_BLOB and can't be used with use_dfs_endpoint");
+            }
+            if (!task.getHttpTransport().equalsIgnoreCase("JETTY")) {
+                // the storage SDK doesn't support blob index tags
+                throw new ConfigException("blob_tags requires http_transport: JETTY");
+            }
+            if (!task.getDestinations().isEmpty()) {
+                throw new ConfigException("blob_tags can't be used with destinations");
+            }
+        }
+        TlsSettings tls = TlsSettings.of(task);
+        if (task.getPackFiles() && BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB) {
+            throw new ConfigException("pack_files requires blob_type: BLOCK_BLOB");
+        }
+        if (!task.getDestinations().isEmpty()) {
+            if (BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB) {
+                throw new ConfigException("destinations requires blob_type: BLOCK_BLOB");
+            }
+            if (task.getSkipUnchanged()) {
+                throw new ConfigException("destinations can't be used with skip_unchanged");
+            }
+        }
+        if (task.getKeepBuffers() && task.getDeltaUpload()) {
+            throw new ConfigException("keep_buffers can't be used with delta_upload");
+        }
+        if (task.getKeepBuffers() && task.getStagingMemoryBudget() <= 0 && !task.getCalibrate()) {
+            // without a budget every block is staged to a temp file, which copies the buffers
+            throw new ConfigException("keep_buffers requires staging_memory_budget more than 0");
+        }
+        if (task.getDeltaUpload()) {
+            if (BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB) {
+                throw new ConfigException("delta_upload requires blob_type: BLOCK_BLOB");
+            }
+            if (task.getSkipUnchanged() || !task.getDestinations().isEmpty()
+                    || task.getCommitInterval().isPresent() || task.getCommitIntervalBytes().isPresent()) {
+                throw new ConfigException("delta_upload can't be used with skip_unchanged, destinations or commit_interval");
+            }
+        }
+        if (task.getUseDfsEndpoint()) {
+            DfsFileOutput.outputDirectory(task);
+            if (BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB) {
+                throw new ConfigException("use_dfs_endpoint requires blob_type: BLOCK_BLOB");
+            }
+            if (task.getSkipUnchanged() || task.getPackFiles() || task.getDeltaUpload() || !task.getDestinations().isEmpty()
+                    || task.getCommitInterval().isPresent() || task.getCommitIntervalBytes().isPresent()) {
+                throw new ConfigException("use_dfs_endpoint can't be used with skip_unchanged, pack_files, delta_upload, destinations or commit_interval");
+            }
+        }
+        if (task.getCommitInterval().isPresent() || task.getCommitIntervalBytes().isPresent()) {
+            if (BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB) {
+                throw new ConfigException("commit_interval requires blob_type: BLOCK_BLOB");
+            }
+            if (task.getSkipUnchanged()) {
+                throw new ConfigException("commit_interval can't be used with skip_unchanged");
+            }
+        }
+
+        if (task.getBlockSize() <= 0) {
+            throw new ConfigException("block_size must be greater than 0");
+        }
+        if (task.getSubBlockFallbackAfter() < 0) {
+            throw new ConfigException("sub_block_fallback_after must not be negative");
+        }
+        if (task.getSubBlockFallbackAfter() > 0 && task.getSubBlockSize() < 1024 * 1024) {
+            throw new ConfigException("sub_block_size must be at least 1MB");
+        }
+        if (task.getSubBlockFallbackAfter() > task.getMaxConnectionRetry() + 1) {
+            throw new ConfigException("sub_block_fallback_after must not be more than max_connection_retry + 1");
+        }
+        if (task.getCalibrate() && task.getCalibrationBytes() < UploadCalibrator.MIN_BYTES_PER_MEASUREMENT) {
+            throw new ConfigException("calibration_bytes must be at least " + UploadCalibrator.MIN_BYTES_PER_MEASUREMENT);
+        }
+        if (task.getCalibrate() && (BlobType.valueOf(task.getBlobType()) != BlobType.BLOCK_BLOB || task.getUseDfsEndpoint())) {
+            throw new ConfigException("calibrate requires blob_type: BLOCK_BLOB and can't be used with use_dfs_endpoint");
+        }
+
+        if (!task.getRunId().isPresent()) {
+            task.setRunId(Optional.of(UUID.randomUUID().toString()));
+        }
 
+        if (dryRun.uploads()) {
+            createContainerIfNotExists(task.getAccountName(), task.getAccountKey(), task.getContainer(), tls);
+            for (Destination destination : task.getDestinations()) {
+                createContainerIfNotExists(destination.getAccountName(), destination.getAccountKey(), destination.getContainer(), tls);
+            }
+            if (task.getUseDfsEndpoint()) {
+                createDfsStagingDirectory(task);
+            }
+        }
+        else {
+            log.info("dry_run: {}. Nothing will be uploaded.", dryRun);
+        }
+
+        UploadCalibrator.Result calibration = null;
+        if (task.getCalibrate() && dryRun.uploads()) {
+            if (task.getCalibratedBytesPerSec().isPresent()) {
+                applyCalibration(config, task, new UploadCalibrator.Result(
+                        task.getCalibratedBlockSize().orElse(task.getBlockSize()),
+                        task.getCalibratedMaxConcurrentUploads().orElse(task.getMaxConcurrentUploads()),
+                        task.getCalibratedStagingMemoryBudget().orElse(task.getStagingMemoryBudget()),
+                        task.getCalibratedBytesPerSec().get()));
+            }
+            calibration = calibrate(task);
+            if (calibration != null) {
+                applyCalibration(config, task, calibration);
+            }
+        }
+        if (task.getKeepBuffers() && task.getStagingMemoryBudget() <= 0) {
+            log.warn("keep_buffers has no effect because the calibrated staging_memory_budget is 0. Blocks are staged to temp files.");
+        }
+
+        ConfigDiff configDiff = resume(task.toTaskSource(), taskCount, control);
+        if (calibration != null) {
+            // stored apart from the options, so that configured values are never overwritten
+            configDiff.set("calibrated_block_size", calibration.getBlockSize())
+                    .set("calibrated_max_concurrent_uploads", calibration.getConcurrency())
+                    .set("calibrated_staging_memory_budget", calibration.getStagingMemoryBudget())
+                    .set("calibrated_bytes_per_sec", calibration.getBytesPerSecond());
+        }
+        return configDiff;
+    }
+
+    /**
+     * Uses the calibrated settings for the options which the config doesn't set.
+     */
+    private static void applyCalibration(ConfigSource config, PluginTask task, UploadCalibrator.Result calibration)
+    {
+        if (config.has("block_size")) {
+            log.info("Calibration: keeping the configured block_size {} instead of {}", task.getBlockSize(), calibration.getBlockSize());
+        }
+        else {
+            log.info("Calibration: block_size {}", calibration.getBlockSize());
+            task.setBlockSize(calibration.getBlockSize());
+        }
+        if (config.has("max_concurrent_uploads")) {
+            log.info("Calibration: keeping the configured max_concurrent_uploads {} instead of {}",
+                    task.getMaxConcurrentUploads(), calibration.getConcurrency());
+        }
+        else {
+            log.info("Calibration: max_concurrent_uploads {}", calibration.getConcurrency());
+            task.setMaxConcurrentUploads(calibration.getConcurrency());
+        }
+        if (config.has("staging_memory_budget")) {
+            log.info("Calibration: keeping the configured staging_memory_budget {} instead of {}",
+                    task.getStagingMemoryBudget(), calibration.getStagingMemoryBudget());
+        }
+        else {
+            log.info("Calibration: staging_memory_budget {}", calibration.getStagingMemoryBudget());
+            task.setStagingMemoryBudget(calibration.getStagingMemoryBudget());
+        }
+    }
+
+    /**
+     * Returns new upload settings, or null when the current settings should be kept.
+     * Settings stored by a previous run are probed once and only recalibrated when the throughput has changed.
+     */
+    private static UploadCalibrator.Result calibrate(PluginTask task)
+    {
+        TlsSettings tls = TlsSettings.of(task);
+        File tempFile = null;
+        CloudBlockBlob blob = null;
         try {
             CloudBlobClient blobClient = newAzureClient(task.getAccountName(), task.getAccountKey());
-            String containerName = task.getContainer();
+            blob = blobClient.getContainerReference(task.getContainer())
+                    .getBlockBlobReference(task.getPathPrefix() + "_embulk_calibration_" + task.getRunId().get());
+            tempFile = newTempFileSpace(task, 0).createTempFile();
+            UploadCalibrator calibrator = new UploadCalibrator(blob, task.getCalibrationBytes(), tempFile, tls);
+
+            if (task.getCalibratedBytesPerSec().isPresent()) {
+                long stored = task.getCalibratedBytesPerSec().get();
+                int concurrency = task.getMaxConcurrentUploads() > 0 ? task.getMaxConcurrentUploads() : CALIBRATION_PROBE_CONCURRENCY;
+                long probed = calibrator.probe(task.getBlockSize(), concurrency);
+                if (!UploadCalibrator.hasChanged(stored, probed)) {
+                    log.info("Calibration: {} MB/s is close to the stored {} MB/s. Keeping the current settings.",
+                            probed / 1024 / 1024, stored / 1024 / 1024);
+                    return null;
+                }
+                log.info("Calibration: {} MB/s differs from the stored {} MB/s. Recalibrating.",
+                        probed / 1024 / 1024, stored / 1024 / 1024);
+            }
+            return calibrator.calibrate();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (RuntimeException | StorageException | URISyntaxException ex) {
+            log.warn("Calibration failed. The configured upload settings are used.", ex);
+            return null;
+        }
+        finally {
+            if (blob != null) {
+                discardCalibrationBlob(blob, tls);
+            }
+            if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                log.warn("Couldn't delete temp file {}", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Commits an empty block list, which drops the uncommitted test blocks, and deletes the blob.
+     */
+    private static void discardCalibrationBlob(CloudBlockBlob blob, TlsSettings tls)
+    {
+        try {
+            blob.commitBlockList(new ArrayList<>(), null, null, tls.newOperationContext());
+            blob.deleteIfExists(DeleteSnapshotsOption.NONE, null, null, tls.newOperationContext());
+        }
+        catch (StorageException ex) {
+            log.warn("Couldn't delete calibration blob " + blob.getName(), ex);
+        }
+    }
+
+    private static void createContainerIfNotExists(String accountName, String accountKey, String containerName, TlsSettings tls)
+    {
+        try {
+            CloudBlobClient blobClient = newAzureClient(accountName, accountKey);
             CloudBlobContainer container = blobClient.getContainerReference(containerName);
-            if (!container.exists()) {
+            if (!container.exists(null, tls.newOperationContext())) {
                 log.info("container {} doesn't exist and is created.", containerName);
-                container.createIfNotExists();
+                container.createIfNotExists(BlobContainerPublicAccessType.OFF, null, tls.newOperationContext());
             }
         }
         catch (StorageException | URISyntaxException ex) {
             throw new ConfigException(ex);
         }
-
-        return resume(task.toTaskSource(), taskCount, control);
     }
 
     @Override
     public ConfigDiff resume(TaskSource taskSource, int taskCount, FileOutputPlugin.Control control)
     {
-        control.run(taskSource);
+        PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper().map(taskSource, PluginTask.class);
+        String runId = task.getRunId().get();
+
+        // tasks in this JVM share the Jetty client, which is stopped when the transaction releases it
+        boolean jetty = DryRun.of(task.getDryRun()).uploads()
+                && (task.getUseDfsEndpoint() || task.getHttpTransport().equalsIgnoreCase("JETTY"));
+        HttpClient http = jetty ? JettyClients.acquire(task) : null;
+        try {
+            ProgressReporter progress = ProgressReporter.start(runId, task.getProgressInterval(), task.getProgressTotalBytes().orElse(0L));
+            List<TaskReport> taskReports;
+            try {
+                taskReports = control.run(taskSource);
+            }
+            catch (RuntimeException ex) {
+                if (task.getUseDfsEndpoint() && DryRun.of(task.getDryRun()).uploads()) {
+                    discardDfsStagingDirectory(task);
+                }
+                throw ex;
+            }
+            finally {
+                if (progress != null) {
+                    progress.stop();
+                }
+            }
+            if (task.getUseDfsEndpoint() && DryRun.of(task.getDryRun()).uploads()) {
+                publishDfsStagingDirectory(task, taskReports);
+            }
+            if (task.getWriteManifest() && DryRun.of(task.getDryRun()).uploads()) {
+                writeManifest(task, taskReports);
+            }
+        }
+        finally {
+            if (http != null) {
+                JettyClients.release(http);
+            }
+        }
 
         return CONFIG_MAPPER_FACTORY.newConfigDiff();
     }
 
+    private static DfsClient newDfsClient(PluginTask task)
+    {
+        return new DfsClient(newRestClient(task, "dfs"), task.getContainer());
+    }
+
+    /**
+     * The client holds a reference to the shared Jetty client until it is closed.
+     */
+    static StorageRestClient newRestClient(PluginTask task, String service)
+    {
+        return new StorageRestClient(JettyClients.acquire(task), task.getAccountName(), task.getAccountKey(), service, task.getHttpRequestTimeout());
+    }
+
+    private static void createDfsStagingDirectory(PluginTask task)
+    {
+        try (DfsClient dfs = newDfsClient(task)) {
+            dfs.createDirectory(DfsFileOutput.stagingDirectory(task));
+        }
+        catch (IOException ex) {
+            throw new ConfigException(ex);
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Moves each file written by the run from the staging directory to the output directory with its own rename.
+     * A file appears complete, but files appear one by one. Other files in the output directory are left as they are,
+     * and a file of the same name is replaced.
+     */
+    private static void publishDfsStagingDirectory(PluginTask task, List<TaskReport> taskReports)
+    {
+        String staging = DfsFileOutput.stagingDirectory(task);
+        String output = DfsFileOutput.outputDirectory(task);
+        List<WrittenBlob> files = ManifestWriter.collect(taskReports);
+        int published = 0;
+        try (DfsClient dfs = newDfsClient(task)) {
+            dfs.createDirectory(output);
+            for (WrittenBlob file : files) {
+                String fileName = file.getName().substring(output.length() + 1);
+                dfs.rename(staging + "/" + fileName, file.getName());
+                published++;
+            }
+            log.info("Published {} files from {} to {}", published, staging, output);
+            dfs.deleteRecursively(staging);
+        }
+        catch (IOException ex) {
+            throw new DataException(String.format("Published %d of %d files to %s. The rest is left in %s",
+                    published, files.size(), output, staging), ex);
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void discardDfsStagingDirectory(PluginTask task)
+    {
+        try (DfsClient dfs = newDfsClient(task)) {
+            dfs.deleteRecursively(DfsFileOutput.stagingDirectory(task));
+        }
+        catch (IOException | InterruptedException | RuntimeException ex) {
+            log.warn("Couldn't delete staging directory " + DfsFileOutput.stagingDirectory(task), ex);
+        }
+    }
+
+    private static void deleteBlobs(String accountName, String accountKey, String containerName, List<String> names, TlsSettings tls)
+    {
+        try {
+            CloudBlobClient blobClient = newAzureClient(accountName, accountKey);
+            CloudBlobContainer container = blobClient.getContainerReference(containerName);
+            new SdkBlobStore(blobClient, container, DELETE_CONCURRENCY, tls).delete(names);
+        }
+        catch (StorageException | URISyntaxException | RuntimeException ex) {
+            log.warn("Couldn't delete uploaded blobs", ex);
+        }
+    }
+
+    private static void writeManifest(PluginTask task, List<TaskReport> taskReports)
+    {
+        try {
+            CloudBlobClient blobClient = newAzureClient(task.getAccountName(), task.getAccountKey());
+            CloudBlobContainer container = blobClient.getContainerReference(task.getContainer());
+            new ManifestWriter(container, task.getPathPrefix(), ManifestWriter.Format.of(task.getManifestFormat()), TlsSettings.of(task),
+                    RetryPolicy.of("Azure Blob Storage", task, ProgressReporter.taskProgress(null, 0))).write(taskReports);
+        }
+        catch (StorageException | URISyntaxException | IOException ex) {
+            throw new DataException(ex);
+        }
+    }
+
+    /**
+     * Embulk calls this with the reports of the tasks which succeeded, also when the run failed
+     * or when the resume state of a failed run is cleaned up.
+     */
     @Override
     public void cleanup(TaskSource taskSource, int taskCount, List<TaskReport> successTaskReports)
     {
+        PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper().map(taskSource, PluginTask.class);
+        if (!task.getDeleteOnFailure() || successTaskReports.size() >= taskCount
+                || task.getUseDfsEndpoint() || !DryRun.of(task.getDryRun()).uploads()) {
+            return;
+        }
+        // tasks which failed deleted their own blobs in abort()
+        List<List<String>> uploaded = uploadedBlobs(successTaskReports, task.getDestinations().size());
+        String runId = task.getRunId().orElse("");
+        TlsSettings tls = TlsSettings.of(task);
+        log.info("Run {} failed. Deleting {} blobs uploaded by {} succeeded tasks.", runId, uploaded.get(0).size(), successTaskReports.size());
+        deleteBlobs(task.getAccountName(), task.getAccountKey(), task.getContainer(), uploaded.get(0), tls);
+        for (int i = 0; i < task.getDestinations().size(); i++) {
+            Destination destination = task.getDestinations().get(i);
+            log.info("Run {} failed. Deleting {} uploaded blobs of destination {}.", runId, uploaded.get(i + 1).size(), destination);
+            deleteBlobs(destination.getAccountName(), destination.getAccountKey(), destination.getContainer(), uploaded.get(i + 1), tls);
+        }
     }
 
-    private static CloudBlobClient newAzureClient(String accountName, String accountKey)
+    /**
+     * Names of the blobs which the tasks uploaded with {@code delete_on_failure}. The first list is of the primary
+     * account, and the list at {@code i + 1} is of {@code destinations[i]}.
+     */
+    static List<List<String>> uploadedBlobs(List<TaskReport> taskReports, int destinationCount)
+    {
+        List<List<String>> uploaded = new ArrayList<>();
+        for (int i = 0; i <= destinationCount; i++) {
+            uploaded.add(new ArrayList<>());
+        }
+        for (TaskReport report : taskReports) {
+            if (report.has("uploaded_blobs")) {
+                uploaded.get(0).addAll(Arrays.asList(report.get(String[].class, "uploaded_blobs")));
+            }
+            if (report.has("destination_uploaded_blobs")) {
+                String[][] destinations = report.get(String[][].class, "destination_uploaded_blobs");
+                for (int i = 0; i < destinations.length && i < destinationCount; i++) {
+                    uploaded.get(i + 1).addAll(Arrays.asList(destinations[i]));
+                }
+            }
+        }
+        return uploaded;
+    }
+
+    static CloudBlobClient newAzureClient(String accountName, String accountKey)
     {
         String connectionString = "DefaultEndpointsProtocol=https;" +
                 "AccountName=" + accountName + ";" +
@@ -121,19 +806,32 @@ public class AzureBlobStorageFileOutputPlugin
         return account.createCloudBlobClient();
     }
 
+    private static TempFileSpace newTempFileSpace(PluginTask task, int taskIndex)
+    {
+        if (task.getTempDirs().isEmpty()) {
+            return Exec.getTempFileSpace();
+        }
+        return new StripedTempFileSpace(task.getTempDirs(), StripedTempFileSpace.Selection.of(task.getTempDirSelection()), taskIndex);
+    }
+
     @Override
     public TransactionalFileOutput open(TaskSource taskSource, final int taskIndex)
     {
         final PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper().map(taskSource, PluginTask.class);
         final BlobType blobType = BlobType.valueOf(task.getBlobType());
         final CloudBlobClient blobClient = newAzureClient(task.getAccountName(), task.getAccountKey());
+        final TempFileSpace tempFileSpace = newTempFileSpace(task, taskIndex);
+
+        if (task.getUseDfsEndpoint()) {
+            return new DfsFileOutput(newDfsClient(task), task, taskIndex, tempFileSpace);
+        }
 
         // should support multiple blob type in the future.
         switch (blobType) {
             case BLOCK_BLOB:
-                return new BlockBlobFileOutput(blobClient, task, taskIndex, Exec.getTempFileSpace());
+                return new BlockBlobFileOutput(blobClient, task, taskIndex, tempFileSpace);
             default:
-                return new BlobFileOutput(blobClient, task, taskIndex, Exec.getTempFileSpace());
+                return new BlobFileOutput(blobClient, task, taskIndex, tempFileSpace);
         }
     }
 }
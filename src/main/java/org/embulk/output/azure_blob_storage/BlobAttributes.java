@@ -0,0 +1,86 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metadata, properties and index tags set on a blob when it is written through a {@link BlobStore}.
+ */
+public class BlobAttributes
+{
+    private static final BlobAttributes NONE = new BlobAttributes(Collections.<String, String>emptyMap(), null, null);
+
+    private final Map<String, String> metadata;
+    private final String contentMd5;
+    private final String contentType;
+    private final Map<String, String> tags;
+
+    public BlobAttributes(Map<String, String> metadata, String contentMd5, String contentType)
+    {
+        this(metadata, contentMd5, contentType, Collections.<String, String>emptyMap());
+    }
+
+    public BlobAttributes(Map<String, String> metadata, String contentMd5, String contentType, Map<String, String> tags)
+    {
+        this.metadata = Collections.unmodifiableMap(new LinkedHashMap<>(metadata));
+        this.contentMd5 = contentMd5;
+        this.contentType = contentType;
+        this.tags = Collections.unmodifiableMap(new LinkedHashMap<>(tags));
+    }
+
+    public static BlobAttributes none()
+    {
+        return NONE;
+    }
+
+    /**
+     * Attributes carrying the {@link BlobFingerprint} of the content, or none if {@code md5} is null.
+     */
+    public static BlobAttributes withFingerprint(String md5)
+    {
+        if (md5 == null) {
+            return NONE;
+        }
+        return new BlobAttributes(Collections.singletonMap(BlobFingerprint.METADATA_KEY, md5), md5, null);
+    }
+
+    public static BlobAttributes withContentType(String contentType)
+    {
+        return new BlobAttributes(Collections.<String, String>emptyMap(), null, contentType);
+    }
+
+    /**
+     * Copy with the blob index tags. They replace all tags of the blob.
+     */
+    public BlobAttributes withTags(Map<String, String> tags)
+    {
+        return new BlobAttributes(metadata, contentMd5, contentType, tags);
+    }
+
+    public Map<String, String> getMetadata()
+    {
+        return metadata;
+    }
+
+    /**
+     * Base64 encoded MD5 of the whole content, or null.
+     */
+    public String getContentMd5()
+    {
+        return contentMd5;
+    }
+
+    /**
+     * Content type, or null for the default of the service.
+     */
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    public Map<String, String> getTags()
+    {
+        return tags;
+    }
+}
@@ -0,0 +1,109 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobDeleteBatchOperation;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deletes many blobs with the Blob Batch API (up to 256 deletes per request), sending batches from a thread pool.
+ * Falls back to one request per blob if the account doesn't accept batches.
+ */
+public class BlobDeleter
+{
+    static final int MAX_BATCH_SIZE = 256;
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobDeleter.class);
+
+    private final CloudBlobClient client;
+    private final CloudBlobContainer container;
+    private final int concurrency;
+    private final TlsSettings tls;
+
+    public BlobDeleter(CloudBlobClient client, CloudBlobContainer container, int concurrency, TlsSettings tls)
+    {
+        this.client = client;
+        this.container = container;
+        this.concurrency = Math.max(1, concurrency);
+        this.tls = tls;
+    }
+
+    public void deleteAll(List<String> names)
+    {
+        if (names.isEmpty()) {
+            return;
+        }
+        List<List<String>> batches = partition(names, MAX_BATCH_SIZE);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, batches.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final List<String> batch : batches) {
+                futures.add(executor.submit(() -> deleteBatch(batch)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            logger.info("Deleted {} blobs in {} batches", names.size(), batches.size());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void deleteBatch(List<String> names)
+    {
+        try {
+            BlobDeleteBatchOperation batch = new BlobDeleteBatchOperation();
+            for (String name : names) {
+                batch.addSubOperation(container.getBlockBlobReference(name));
+            }
+            client.executeBatch(batch, null, tls.newOperationContext());
+        }
+        catch (Exception ex) {
+            // e.g. some blobs are already deleted, or batches are not supported by the account
+            logger.debug("Batch delete failed. Deleting blobs one by one.", ex);
+            for (String name : names) {
+                deleteOne(name);
+            }
+        }
+    }
+
+    private void deleteOne(String name)
+    {
+        try {
+            CloudBlockBlob blob = container.getBlockBlobReference(name);
+            blob.deleteIfExists(DeleteSnapshotsOption.NONE, null, null, tls.newOperationContext());
+        }
+        catch (StorageException | URISyntaxException ex) {
+            logger.warn("Couldn't delete blob " + name, ex);
+        }
+    }
+
+    static <T> List<List<T>> partition(List<T> list, int size)
+    {
+        List<List<T>> partitions = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += size) {
+            partitions.add(new ArrayList<>(list.subList(i, Math.min(list.size(), i + size))));
+        }
+        return partitions;
+    }
+}
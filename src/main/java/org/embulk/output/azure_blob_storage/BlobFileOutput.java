@@ -9,58 +9,88 @@ import org.embulk.config.TaskReport;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.TempFileSpace;
 import org.embulk.spi.TransactionalFileOutput;
-import org.embulk.util.retryhelper.RetryExecutor;
-import org.embulk.util.retryhelper.RetryGiveupException;
-import org.embulk.util.retryhelper.Retryable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
 import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
 
 /**
- * Extract class from previous version of {@link AzureBlobStorageFileOutputPlugin} without logic modification
+ * Output of the blob types other than {@code BLOCK_BLOB}. Each file is written to a temp file and uploaded
+ * as one blob with the storage SDK when it is finished, retried by the task's {@link RetryPolicy}. With {@code skip_unchanged},
+ * a blob whose MD5 fingerprint matches the existing blob is not uploaded again.
  */
 public class BlobFileOutput implements TransactionalFileOutput
 {
+    private static final long SINGLE_BLOB_PUT_THRESHOLD = 32 * 1024 * 1024;
+    private static final int DELETE_CONCURRENCY = 8;
     private final Logger logger = LoggerFactory.getLogger(AzureBlobStorageFileOutputPlugin.class);
-    private final CloudBlobClient client;
-    private final String containerName;
+    private final CloudBlobContainer container;
+    private final BlobStore store;
+    private final String runId;
+    private final boolean deleteOnFailure;
+    // blobs uploaded by this task. with delete_on_failure, abort() deletes them, and commit() reports them for cleanup()
+    private final List<String> uploadedBlobs = new ArrayList<>();
     private final String pathPrefix;
     private final String sequenceFormat;
     private final String pathSuffix;
-    private final int maxConnectionRetry;
-    private BufferedOutputStream output = null;
+    private final RetryPolicy retryPolicy;
+    private final boolean skipUnchanged;
+    private final boolean computeChecksum;
+    private final DryRun dryRun;
+    private final TransferStats stats;
+    private final UploadThrottle throttle;
+    private final TlsSettings tls;
+    private OutputStream output = null;
+    private MessageDigest digest;
     private int fileIndex;
     private File file;
+    private StagedBlock staged;
     private String filePath;
     private int taskIndex;
     private TempFileSpace tempFileSpace;
 
     public BlobFileOutput(CloudBlobClient client, PluginTask task, int taskIndex, final TempFileSpace tempFileSpace)
     {
-        this.client = client;
-        this.containerName = task.getContainer();
+        try {
+            this.container = client.getContainerReference(task.getContainer());
+        }
+        catch (StorageException | URISyntaxException e) {
+            throw new ConfigException(e);
+        }
+        this.tls = TlsSettings.of(task);
+        this.store = new SdkBlobStore(client, container, DELETE_CONCURRENCY, tls);
         this.taskIndex = taskIndex;
+        this.runId = task.getRunId().orElse(null);
+        this.deleteOnFailure = task.getDeleteOnFailure();
         this.pathPrefix = task.getPathPrefix();
         this.sequenceFormat = task.getSequenceFormat();
         this.pathSuffix = task.getFileNameExtension();
-        this.maxConnectionRetry = task.getMaxConnectionRetry();
+        this.skipUnchanged = task.getSkipUnchanged();
+        this.computeChecksum = task.getSkipUnchanged() || task.getWriteManifest();
+        this.dryRun = DryRun.of(task.getDryRun());
+        this.throttle = UploadThrottle.of(task);
+        this.stats = new TransferStats(ProgressReporter.taskProgress(runId, taskIndex));
+        this.retryPolicy = RetryPolicy.of("Azure Blob Storage", task, stats.getProgress());
         this.tempFileSpace = tempFileSpace;
     }
 
     @Override
     public void nextFile()
     {
+        if (dryRun == DryRun.DISCARD) {
+            return;
+        }
         closeFile();
 
         try {
@@ -70,8 +100,13 @@ public class BlobFileOutput implements TransactionalFileOutput
             }
             filePath = pathPrefix + String.format(sequenceFormat, taskIndex, fileIndex) + suffix;
             file = this.tempFileSpace.createTempFile();
-            logger.info("Writing local file {}", file.getAbsolutePath());
-            output = new BufferedOutputStream(new FileOutputStream(file));
+            logger.debug("Writing local file {}", file.getAbsolutePath());
+            staged = new FileStagedBlock(file, StripedTempFileSpace.newOutputStream(tempFileSpace, file));
+            output = staged.getOutputStream();
+            if (computeChecksum) {
+                digest = BlobFingerprint.newDigest();
+                output = new DigestOutputStream(output, digest);
+            }
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -95,7 +130,13 @@ public class BlobFileOutput implements TransactionalFileOutput
     public void add(Buffer buffer)
     {
         try {
+            if (dryRun == DryRun.DISCARD) {
+                stats.addStaged(buffer.limit(), 0);
+                return;
+            }
+            long start = System.nanoTime();
             output.write(buffer.array(), buffer.offset(), buffer.limit());
+            stats.addStaged(buffer.limit(), System.nanoTime() - start);
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -117,71 +158,68 @@ public class BlobFileOutput implements TransactionalFileOutput
         if (filePath == null) {
             return null;
         }
+        if (!dryRun.uploads()) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Couldn't delete local file " + file.getAbsolutePath());
+            }
+            return null;
+        }
+        final String md5 = digest != null ? BlobFingerprint.encode(digest) : null;
 
+        long start = System.nanoTime();
+        final AtomicInteger attempts = new AtomicInteger();
         try {
-            return RetryExecutor.builder()
-                    .withRetryLimit(maxConnectionRetry)
-                    .withInitialRetryWaitMillis(500)
-                    .withMaxRetryWaitMillis(30 * 1000)
-                    .build()
-                    .runInterruptible(new Retryable<Void>() {
-                        @Override
-                        public Void call() throws StorageException, URISyntaxException, IOException
-                        {
-                            CloudBlobContainer container = client.getContainerReference(containerName);
-                            CloudBlockBlob blob = container.getBlockBlobReference(filePath);
-                            logger.info("Upload start {} to {}", file.getAbsolutePath(), filePath);
-                            try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
-                                blob.upload(in, file.length());
-                                logger.info("Upload completed {} to {}", file.getAbsolutePath(), filePath);
-                            }
-                            return null;
-                        }
-
-                        @Override
-                        public boolean isRetryableException(Exception exception)
-                        {
-                            return true;
-                        }
-
-                        @Override
-                        public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
-                                throws RetryGiveupException
-                        {
-                            if (exception instanceof FileNotFoundException || exception instanceof URISyntaxException || exception instanceof ConfigException) {
-                                throw new RetryGiveupException(exception);
-                            }
-                            String message = String.format("Azure Blob Storage put request failed. Retrying %d/%d after %d seconds. Message: %s",
-                                    retryCount, retryLimit, retryWait / 1000, exception.getMessage());
-                            if (retryCount % 3 == 0) {
-                                logger.warn(message, exception);
-                            }
-                            else {
-                                logger.warn(message);
-                            }
-                        }
-
-                        @Override
-                        public void onGiveup(Exception firstException, Exception lastException)
-                        {
-                        }
-                    });
-        }
-        catch (RetryGiveupException ex) {
-            throw new RuntimeException(ex.getCause());
-        }
-        catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+            return retryPolicy.run(() -> {
+                CloudBlockBlob blob = container.getBlockBlobReference(filePath);
+                if (skipUnchanged && BlobFingerprint.isUnchanged(blob, md5, tls.newOperationContext())) {
+                    logger.info("Skipped unchanged blob {}", filePath);
+                    stats.addSkipped(file.length());
+                    stats.addWrittenBlob(new WrittenBlob(filePath, file.length(), 1, md5));
+                    return null;
+                }
+                logger.debug("Upload start {} to {}", file.getAbsolutePath(), filePath);
+                try (UploadThrottle.Permit permit = throttle.acquire(file.length())) {
+                    stats.getProgress().requestStarted();
+                    JfrEvents.Event event = JfrEvents.BLOB_UPLOAD.begin()
+                            .set(0, filePath).set(1, file.length()).set(2, attempts.incrementAndGet());
+                    try {
+                        // the SDK splits content larger than 32MB into blocks
+                        store.putBlob(filePath, staged, BlobAttributes.withFingerprint(md5));
+                        permit.success();
+                    }
+                    catch (Exception e) {
+                        permit.failure(e);
+                        throw e;
+                    }
+                    finally {
+                        event.commit();
+                        stats.getProgress().requestFinished();
+                    }
+                    logger.debug("Upload completed {} to {}", file.getAbsolutePath(), filePath);
+                }
+                stats.addTransferred(file.length());
+                stats.addWrittenBlob(new WrittenBlob(filePath, file.length(), blockCount(blob, file.length()), md5));
+                uploadedBlobs.add(filePath);
+                return null;
+            });
         }
         finally {
-            if (file.exists()) {
-                if (!file.delete()) {
-                    logger.warn("Couldn't delete local file " + file.getAbsolutePath());
-                }
-            }
+            stats.addUploadNanos(System.nanoTime() - start);
+            staged.release();
         }
     }
 
+    /**
+     * Number of blocks the SDK splits the upload into. It sends a single Put Blob up to 32MB by default.
+     */
+    private static int blockCount(CloudBlockBlob blob, long length)
+    {
+        if (length <= SINGLE_BLOB_PUT_THRESHOLD) {
+            return 1;
+        }
+        return (int) ((length + blob.getStreamWriteSizeInBytes() - 1) / blob.getStreamWriteSizeInBytes());
+    }
+
     @Override
     public void close()
     {
@@ -189,12 +227,36 @@ public class BlobFileOutput implements TransactionalFileOutput
     }
 
     @Override
-    public void abort() {}
+    public void abort()
+    {
+        stats.getProgress().finish();
+        // Embulk cleans up its own temp file space, but not the directories of temp_dirs
+        if (tempFileSpace instanceof StripedTempFileSpace) {
+            tempFileSpace.cleanup();
+        }
+        if (deleteOnFailure && !uploadedBlobs.isEmpty()) {
+            try {
+                store.delete(uploadedBlobs);
+            }
+            catch (RuntimeException ex) {
+                // don't hide the failure of the task
+                logger.warn("Couldn't delete the blobs uploaded by task " + taskIndex, ex);
+            }
+            uploadedBlobs.clear();
+        }
+    }
 
     @Override
     public TaskReport commit()
     {
-        return CONFIG_MAPPER_FACTORY.newTaskReport();
+        stats.getProgress().finish();
+        logger.info("Task {}: {}", taskIndex, stats.summary());
+        TaskReport report = stats.toTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport());
+        StripedTempFileSpace.report(tempFileSpace, report);
+        if (deleteOnFailure) {
+            report.set("uploaded_blobs", uploadedBlobs);
+        }
+        return report;
     }
 
     public boolean isTempFileExist()
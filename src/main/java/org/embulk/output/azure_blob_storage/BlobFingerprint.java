@@ -0,0 +1,61 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * MD5 fingerprint of blob content used by {@code skip_unchanged}.
+ *
+ * The digest is stored in the blob metadata when uploading (see {@link BlobAttributes#withFingerprint(String)}),
+ * and compared with the metadata or {@code Content-MD5} of the existing blob which is fetched by a single HEAD request.
+ */
+public final class BlobFingerprint
+{
+    static final String METADATA_KEY = "embulk_content_md5";
+
+    private BlobFingerprint()
+    {
+    }
+
+    public static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static String encode(MessageDigest digest)
+    {
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Returns true if the remote blob exists and its stored fingerprint equals to the given one.
+     */
+    public static boolean isUnchanged(CloudBlob blob, String md5, OperationContext context) throws StorageException
+    {
+        try {
+            blob.downloadAttributes(null, null, context);
+        }
+        catch (StorageException ex) {
+            if (ex.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            throw ex;
+        }
+        String remote = blob.getMetadata().get(METADATA_KEY);
+        if (remote == null) {
+            remote = blob.getProperties().getContentMD5();
+        }
+        return md5.equals(remote);
+    }
+}
@@ -0,0 +1,47 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+
+/**
+ * Write operations of one container which the outputs send to the storage service.
+ *
+ * Each call is a single request without retries. Callers apply {@link UploadThrottle} and retries around it,
+ * so that implementations can be swapped and compared under the same conditions.
+ */
+public interface BlobStore
+{
+    /**
+     * Put Block. The block is read but not released.
+     */
+    void stageBlock(String blobName, String blockId, StagedBlock block)
+            throws StorageException, URISyntaxException, IOException, InterruptedException;
+
+    /**
+     * Put Blob with the whole content. The content is read but not released.
+     */
+    void putBlob(String blobName, StagedBlock content, BlobAttributes attributes)
+            throws StorageException, URISyntaxException, IOException, InterruptedException;
+
+    /**
+     * Put Block List. Each entry is looked up in the committed or uncommitted blocks by its search mode.
+     */
+    void commitBlockList(String blobName, List<BlockEntry> blocks, BlobAttributes attributes)
+            throws StorageException, URISyntaxException, IOException, InterruptedException;
+
+    /**
+     * Deletes the blobs if they exist. Failures are logged and ignored.
+     */
+    void delete(List<String> blobNames);
+
+    /**
+     * Releases the connections which the store holds. The store is not used after this.
+     */
+    default void close()
+    {
+    }
+}
@@ -0,0 +1,86 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Templates of the blob index tags of {@code blob_tags}. Values may contain {@code ${name}} of {@link #VARIABLES},
+ * which are expanded for each blob when it is committed.
+ */
+public class BlobTags
+{
+    static final int MAX_TAGS = 10;
+    static final Set<String> VARIABLES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "run_id", "task_index", "file_index", "blob_name", "bytes")));
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{([a-z_]+)\\}");
+    // characters which the service accepts in tag keys and values
+    private static final Pattern ALLOWED = Pattern.compile("[a-zA-Z0-9 +\\-./:=_]*");
+
+    private final Map<String, String> templates;
+
+    public BlobTags(Map<String, String> templates)
+    {
+        if (templates.size() > MAX_TAGS) {
+            throw new ConfigException("blob_tags can have up to " + MAX_TAGS + " tags");
+        }
+        for (Map.Entry<String, String> entry : templates.entrySet()) {
+            String key = entry.getKey();
+            if (key.isEmpty() || key.length() > 128 || !ALLOWED.matcher(key).matches()) {
+                throw new ConfigException("Invalid blob tag key: " + key);
+            }
+            Matcher matcher = VARIABLE.matcher(entry.getValue());
+            while (matcher.find()) {
+                if (!VARIABLES.contains(matcher.group(1))) {
+                    throw new ConfigException("Unknown variable ${" + matcher.group(1) + "} in blob tag " + key + ". Available: " + VARIABLES);
+                }
+            }
+            if (!ALLOWED.matcher(VARIABLE.matcher(entry.getValue()).replaceAll("")).matches()) {
+                throw new ConfigException("Invalid blob tag value of " + key + ": " + entry.getValue());
+            }
+        }
+        this.templates = new LinkedHashMap<>(templates);
+    }
+
+    public boolean isEmpty()
+    {
+        return templates.isEmpty();
+    }
+
+    /**
+     * Expands the variables. Characters which tags don't accept are replaced with {@code _}, and values are cut at 256 characters.
+     */
+    public Map<String, String> expand(Map<String, String> variables)
+    {
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : templates.entrySet()) {
+            Matcher matcher = VARIABLE.matcher(entry.getValue());
+            StringBuffer value = new StringBuffer();
+            while (matcher.find()) {
+                String replacement = variables.get(matcher.group(1));
+                matcher.appendReplacement(value, Matcher.quoteReplacement(replacement != null ? sanitize(replacement) : ""));
+            }
+            matcher.appendTail(value);
+            tags.put(entry.getKey(), value.length() > 256 ? value.substring(0, 256) : value.toString());
+        }
+        return tags;
+    }
+
+    private static String sanitize(String value)
+    {
+        StringBuilder sanitized = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            sanitized.append(ALLOWED.matcher(String.valueOf(c)).matches() ? c : '_');
+        }
+        return sanitized.toString();
+    }
+}
@@ -1,7 +1,10 @@
 package org.embulk.output.azure_blob_storage;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
 import com.microsoft.azure.storage.blob.BlockSearchMode;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
@@ -12,94 +15,255 @@ import org.embulk.spi.Buffer;
 import org.embulk.spi.DataException;
 import org.embulk.spi.TempFileSpace;
 import org.embulk.spi.TransactionalFileOutput;
-import org.embulk.util.retryhelper.RetryExecutor;
-import org.embulk.util.retryhelper.RetryGiveupException;
-import org.embulk.util.retryhelper.Retryable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
 
 public class BlockBlobFileOutput implements TransactionalFileOutput
 {
+    private static final int SMALL_BLOB_CHUNK_SIZE = 64 * 1024;
+    private static final int DELETE_CONCURRENCY = 8;
+    private static final long DELTA_MIN_BLOCK_SIZE = 1024 * 1024;
+    private static final long DELTA_AVERAGE_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final long DELTA_MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    // sub-block IDs have 4 digits for the sub-block index
+    private static final int MAX_SUB_BLOCKS = 9999;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final int blockSize;
+    private final int subBlockFallbackAfter;
+    private final long subBlockSize;
     private final CloudBlobContainer container;
+    private final BlobStore store;
+    private final String runId;
+    private final boolean deleteOnFailure;
+    // blobs uploaded by this task. with delete_on_failure, abort() deletes them, and commit() reports them for cleanup()
+    private final List<String> uploadedBlobs = new ArrayList<>();
     private final String pathPrefix;
     private final String sequenceFormat;
     private final String pathSuffix;
-    private final int maxConnectionRetry;
-    private BufferedOutputStream output = null;
+    private final RetryPolicy retryPolicy;
+    private final boolean skipUnchanged;
+    private final boolean computeChecksum;
+    private final long singlePutThreshold;
+    private final boolean keepBuffers;
+    private final boolean packFiles;
+    private final DryRun dryRun;
+    private final TransferStats stats;
+    private final UploadThrottle throttle;
+    private final Replicas replicas;
+    private final BlobTags tags;
+    private final TlsSettings tls;
+    // delta_upload
+    private final ContentDefinedChunker chunker;
+    private MessageDigest blockDigest;
+    private Set<String> remoteBlockIds;
+    private final Set<String> uploadedBlockIds = new HashSet<>();
+    private final long commitIntervalNanos;
+    private final long commitIntervalBytes;
+    private long lastCommitNanos;
+    private long lastCommitLength;
+    private boolean blobTracked;
+    private OutputStream output = null;
+    private String blobName;
+    private int blobFileIndex;
     private CloudBlockBlob blockBlob;
     private int fileIndex;
     private final int taskIndex;
-    private File file;
+    private StagedBlock block;
+    // true while the current block is the in-memory buffer of a blob which may be sent with a single Put Blob
+    private boolean smallBlob;
     private int blockIndex = 0;
     private final List<BlockEntry> blocks = new ArrayList<>();
+    private final BlockStager stager;
     private final TempFileSpace tempFileSpace;
+    // with skip_unchanged, staged blocks are kept until the whole blob is hashed
+    private final List<StagedBlock> pendingBlocks = new ArrayList<>();
+    private MessageDigest digest;
+    private long blobLength;
+    // with pack_files, each file from nextFile() is a segment of one blob per task
+    private final List<PackedSegment> segments = new ArrayList<>();
+    private String segmentName;
+    private long segmentOffset;
 
     public BlockBlobFileOutput(CloudBlobClient client, AzureBlobStorageFileOutputPlugin.PluginTask task, int taskIndex, final TempFileSpace tempFileSpace)
+    {
+        this(client, newBlobStore(client, task), task, taskIndex, tempFileSpace);
+    }
+
+    BlockBlobFileOutput(CloudBlobClient client, BlobStore store, AzureBlobStorageFileOutputPlugin.PluginTask task, int taskIndex, final TempFileSpace tempFileSpace)
     {
         try {
             this.container = client.getContainerReference(task.getContainer());
             this.tempFileSpace = tempFileSpace;
+            this.stager = new BlockStager(tempFileSpace, task.getStagingMemoryBudget());
         }
         catch (Exception e) {
             throw new ConfigException(e);
         }
+        this.store = store;
+        this.tls = TlsSettings.of(task);
         this.taskIndex = taskIndex;
+        this.runId = task.getRunId().orElse(null);
+        this.deleteOnFailure = task.getDeleteOnFailure();
         this.pathPrefix = task.getPathPrefix();
         this.sequenceFormat = task.getSequenceFormat();
         this.pathSuffix = task.getFileNameExtension();
-        this.maxConnectionRetry = task.getMaxConnectionRetry();
-        // ~ 90M. init here for unit test changes it
-        this.blockSize = 90 * 1024 * 1024;
+        this.skipUnchanged = task.getSkipUnchanged();
+        this.computeChecksum = task.getSkipUnchanged() || task.getWriteManifest();
+        this.singlePutThreshold = task.getSinglePutThreshold();
+        this.keepBuffers = task.getKeepBuffers();
+        this.packFiles = task.getPackFiles();
+        this.dryRun = DryRun.of(task.getDryRun());
+        this.throttle = UploadThrottle.of(task);
+        this.replicas = new Replicas(task);
+        this.tags = new BlobTags(task.getBlobTags());
+        this.chunker = task.getDeltaUpload()
+                ? new ContentDefinedChunker(DELTA_MIN_BLOCK_SIZE, DELTA_AVERAGE_BLOCK_SIZE, DELTA_MAX_BLOCK_SIZE)
+                : null;
+        this.stats = new TransferStats(ProgressReporter.taskProgress(runId, taskIndex));
+        this.retryPolicy = RetryPolicy.of("Azure Blob Storage", task, stats.getProgress());
+        this.commitIntervalNanos = TimeUnit.SECONDS.toNanos(task.getCommitInterval().orElse(0L));
+        this.commitIntervalBytes = task.getCommitIntervalBytes().orElse(0L);
+        // init here for unit test changes it
+        this.blockSize = task.getBlockSize();
+        this.subBlockFallbackAfter = task.getSubBlockFallbackAfter();
+        this.subBlockSize = task.getSubBlockSize();
+    }
+
+    /**
+     * Store of the primary destination. {@code http_transport: JETTY} sends uploads and commits through Jetty.
+     */
+    static BlobStore newBlobStore(CloudBlobClient client, AzureBlobStorageFileOutputPlugin.PluginTask task)
+    {
+        BlobStore sdk;
+        try {
+            sdk = new SdkBlobStore(client, client.getContainerReference(task.getContainer()), DELETE_CONCURRENCY, TlsSettings.of(task));
+        }
+        catch (Exception e) {
+            throw new ConfigException(e);
+        }
+        if (task.getHttpTransport().equalsIgnoreCase("JETTY")) {
+            return new JettyBlobStore(AzureBlobStorageFileOutputPlugin.newRestClient(task, "blob"), task.getContainer(), sdk);
+        }
+        return sdk;
     }
 
     @Override
     public void nextFile()
     {
-        // close and commit current file
-        closeCurrentFile();
-        commitCurrentBlob();
+        if (dryRun == DryRun.DISCARD) {
+            fileIndex++;
+            return;
+        }
+
+        if (packFiles) {
+            nextSegment();
+            return;
+        }
+
+        // upload the rest of current file and commit it
+        finishCurrentBlob();
 
-        // prepare for next new file
-        newTempFile();
-        newBlockBlob();
+        // prepare for next new file. staging and the blob reference are created on the first add()
+        startBlob(newBlobName());
         fileIndex++;
     }
 
-    private void newBlockBlob()
+    private void startBlob(String name)
     {
-        try {
-            blockBlob = container.getBlockBlobReference(newBlobName());
-            blockIndex = 0;
-            blocks.clear();
+        blobName = name;
+        blobFileIndex = fileIndex;
+        blockBlob = null;
+        blockIndex = 0;
+        blocks.clear();
+        blobLength = 0;
+        digest = computeChecksum ? BlobFingerprint.newDigest() : null;
+        lastCommitNanos = System.nanoTime();
+        lastCommitLength = 0;
+        blobTracked = false;
+        remoteBlockIds = null;
+        uploadedBlockIds.clear();
+        if (chunker != null) {
+            chunker.reset();
         }
-        catch (Exception e) {
-            throw new DataException(e);
+    }
+
+    private void nextSegment()
+    {
+        if (blobName == null) {
+            startBlob(newPackName());
+        }
+        else {
+            closeSegment();
+        }
+        segmentName = newBlobName();
+        segmentOffset = currentLength();
+        fileIndex++;
+    }
+
+    private void closeSegment()
+    {
+        if (segmentName != null) {
+            segments.add(new PackedSegment(blobName, segmentName, segmentOffset, currentLength() - segmentOffset));
+            segmentName = null;
         }
     }
 
+    private long currentLength()
+    {
+        return blobLength + (block != null ? block.length() : 0);
+    }
+
+    private String newPackName()
+    {
+        return pathPrefix + String.format(sequenceFormat, taskIndex, 0) + ".pack" + suffix();
+    }
+
+    private CloudBlockBlob blob()
+    {
+        if (blockBlob == null) {
+            try {
+                blockBlob = container.getBlockBlobReference(blobName);
+            }
+            catch (Exception e) {
+                throw new DataException(e);
+            }
+        }
+        return blockBlob;
+    }
+
     private String newBlobName()
+    {
+        return pathPrefix + String.format(sequenceFormat, taskIndex, fileIndex) + suffix();
+    }
+
+    private String suffix()
     {
         String suffix = pathSuffix;
         if (!suffix.startsWith(".")) {
             suffix = "." + suffix;
         }
-        return pathPrefix + String.format(sequenceFormat, taskIndex, fileIndex) + suffix;
+        return suffix;
     }
 
     private void closeCurrentFile()
@@ -114,11 +278,28 @@ public class BlockBlobFileOutput implements TransactionalFileOutput
         }
     }
 
-    private void newTempFile()
+    private void newStagedBlock()
     {
         try {
-            file = this.tempFileSpace.createTempFile();
-            output = new BufferedOutputStream(new FileOutputStream(file));
+            // the first block of a blob is kept until it turns out to be larger than single_put_threshold.
+            // it is reserved from the memory budget like the other blocks, and staged in a temp file when the budget runs out.
+            smallBlob = blobLength == 0 && singlePutThreshold > 0 && chunker == null;
+            JfrEvents.Event event = JfrEvents.NEW_STAGED_BLOCK.begin();
+            if (smallBlob) {
+                block = stager.newBlock(Math.min(singlePutThreshold, blockSize), keepBuffers, SMALL_BLOB_CHUNK_SIZE);
+            }
+            else {
+                block = stager.newBlock(chunker != null ? DELTA_MAX_BLOCK_SIZE : blockSize, keepBuffers);
+            }
+            event.set(0, blobName).set(1, !(block instanceof FileStagedBlock)).commit();
+            output = block.getOutputStream();
+            if (digest != null) {
+                output = new DigestOutputStream(output, digest);
+            }
+            if (chunker != null) {
+                blockDigest = newBlockDigest();
+                output = new DigestOutputStream(output, blockDigest);
+            }
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -128,111 +309,600 @@ public class BlockBlobFileOutput implements TransactionalFileOutput
     @Override
     public void add(Buffer buffer)
     {
+        boolean kept = false;
         try {
-            output.write(buffer.array(), buffer.offset(), buffer.limit());
+            if (dryRun == DryRun.DISCARD) {
+                stats.addStaged(buffer.limit(), 0);
+                return;
+            }
+            if (block == null) {
+                newStagedBlock();
+            }
+            if (chunker != null) {
+                addChunked(buffer);
+                return;
+            }
+            JfrEvents.Event stall = JfrEvents.STAGING_STALL.begin();
+            long start = System.nanoTime();
+            int length = buffer.limit();
+            if (block instanceof BufferChainBlock) {
+                if (digest != null) {
+                    digest.update(buffer.array(), buffer.offset(), length);
+                }
+                // the block releases the buffer
+                ((BufferChainBlock) block).append(buffer);
+                kept = true;
+            }
+            else {
+                output.write(buffer.array(), buffer.offset(), length);
+            }
+            stats.addStaged(length, System.nanoTime() - start);
+            stall.set(0, blobName).set(1, (long) length).commit();
 
             // upload this block if the size reaches limit (data can still in the buffer)
-            if (file.length() > blockSize) {
+            long limit = smallBlob ? Math.min(singlePutThreshold, blockSize) : blockSize;
+            if (block.length() > limit || isFull(block)) {
                 closeCurrentFile();
-                uploadFile();
-                newTempFile();
+                stageBlock();
+                newStagedBlock();
+            }
+            if (isCommitDue()) {
+                if (block.length() > 0) {
+                    closeCurrentFile();
+                    stageBlock();
+                    newStagedBlock();
+                }
+                commitUploadedBlocks();
             }
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
         }
         finally {
-            buffer.release();
+            if (!kept) {
+                buffer.release();
+            }
+        }
+    }
+
+    private static boolean isFull(StagedBlock block)
+    {
+        return block instanceof BufferChainBlock && ((BufferChainBlock) block).isFull();
+    }
+
+    /**
+     * Writes the buffer cutting blocks at the boundaries found by the chunker.
+     */
+    private void addChunked(Buffer buffer) throws IOException
+    {
+        byte[] bytes = buffer.array();
+        int offset = buffer.offset();
+        int end = buffer.offset() + buffer.limit();
+        while (offset < end) {
+            int boundary = chunker.next(bytes, offset, end);
+            int stop = boundary < 0 ? end : boundary;
+            JfrEvents.Event stall = JfrEvents.STAGING_STALL.begin();
+            long start = System.nanoTime();
+            output.write(bytes, offset, stop - offset);
+            stats.addStaged(stop - offset, System.nanoTime() - start);
+            stall.set(0, blobName).set(1, (long) (stop - offset)).commit();
+            offset = stop;
+            if (boundary >= 0) {
+                closeCurrentFile();
+                stageBlock();
+                newStagedBlock();
+            }
+        }
+    }
+
+    private static MessageDigest newBlockDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
         }
     }
 
     @Override
     public void finish()
     {
-        logger.info(">>> finish");
+        logger.debug(">>> finish");
+        if (dryRun == DryRun.DISCARD) {
+            return;
+        }
+        if (packFiles) {
+            closeSegment();
+        }
+        finishCurrentBlob();
+        if (packFiles && !segments.isEmpty()) {
+            writePackIndex();
+        }
+    }
+
+    /**
+     * Writes the offsets of all segments as a JSON blob next to the packed blob, and adds them to the task report.
+     */
+    private void writePackIndex()
+    {
+        for (PackedSegment segment : segments) {
+            stats.addPackedSegment(segment);
+        }
+        if (!dryRun.uploads()) {
+            return;
+        }
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            ObjectNode root = mapper.createObjectNode();
+            root.put("blob", blobName);
+            root.set("segments", mapper.valueToTree(segments));
+            final byte[] index = mapper.writeValueAsBytes(root);
+            final String indexName = blobName + ".index.json";
+            final StagedBlock content = new MemoryStagedBlock(indexName, 0);
+            content.getOutputStream().write(index);
+            final BlobAttributes attributes = BlobAttributes.withContentType("application/json");
+            Replicas.Batch copies = replicas.submit(indexName, (replica, name, replicaThrottle) -> retryPolicy.run(() -> send(replicaThrottle, index.length, () -> {
+                replica.putBlob(name, content, attributes);
+                return null;
+            })));
+            try {
+                retryPolicy.run(() -> send(index.length, () -> {
+                    store.putBlob(indexName, content, attributes);
+                    return null;
+                }));
+                copies.await();
+            }
+            finally {
+                copies.awaitQuietly();
+                content.release();
+            }
+            recordUploaded(new WrittenBlob(indexName, index.length, 1, null));
+            logger.info("Wrote index of {} segments: {}", segments.size(), indexName);
+        }
+        catch (IOException e) {
+            throw new DataException(e);
+        }
+    }
+
+    private void finishCurrentBlob()
+    {
         closeCurrentFile();
-        uploadFile();
+        if (block != null && smallBlob) {
+            // nothing has been staged for this blob yet, so it is sent with one Put Blob
+            putSmallBlob();
+            return;
+        }
+        if (block != null) {
+            stageBlock();
+        }
         commitCurrentBlob();
     }
 
+    private void stageBlock()
+    {
+        StagedBlock staged = block;
+        block = null;
+        output = null;
+        smallBlob = false;
+
+        blobLength += staged.length();
+        if (!dryRun.uploads()) {
+            staged.release();
+        }
+        else if (skipUnchanged && staged.length() > 0) {
+            pendingBlocks.add(staged);
+        }
+        else if (chunker != null) {
+            stageDeltaBlock(staged);
+        }
+        else {
+            uploadBlock(staged);
+        }
+    }
+
+    private void putSmallBlob()
+    {
+        final StagedBlock staged = block;
+        block = null;
+        output = null;
+        smallBlob = false;
+
+        try {
+            if (!dryRun.uploads() || staged.length() == 0) {
+                return;
+            }
+            final String md5 = digest != null ? BlobFingerprint.encode(digest) : null;
+            if (skipUnchanged && BlobFingerprint.isUnchanged(blob(), md5, tls.newOperationContext())) {
+                logger.info("Skipped unchanged blob {}", blobName);
+                stats.addSkipped(staged.length());
+                stats.addWrittenBlob(new WrittenBlob(blobName, staged.length(), 1, md5));
+                return;
+            }
+            final BlobAttributes attributes = tagged(BlobAttributes.withFingerprint(md5), staged.length());
+
+            long start = System.nanoTime();
+            Replicas.Batch copies = replicas.submit(blobName, (replica, name, replicaThrottle) -> retryPolicy.run(() -> send(replicaThrottle, staged.length(), () -> {
+                replica.putBlob(name, staged, attributes);
+                return null;
+            })));
+            try {
+                final AtomicInteger attempts = new AtomicInteger();
+                retryPolicy.run(() -> send(staged.length(), () -> {
+                    JfrEvents.Event event = JfrEvents.BLOB_UPLOAD.begin()
+                            .set(0, blobName).set(1, staged.length()).set(2, attempts.incrementAndGet());
+                    try {
+                        store.putBlob(blobName, staged, attributes);
+                        return null;
+                    }
+                    finally {
+                        event.commit();
+                    }
+                }));
+                copies.await();
+            }
+            finally {
+                // the replicas read the staged block until they finish
+                copies.awaitQuietly();
+                stats.addUploadNanos(System.nanoTime() - start);
+            }
+            logger.debug("Uploaded small blob: {}, size ~ {}kb", blobName, staged.length() / 1024);
+            stats.addTransferred(staged.length());
+            // Put Blob replaces Put Block and Put Block List
+            stats.addSavedRequests(1);
+            recordUploaded(new WrittenBlob(blobName, staged.length(), 1, md5));
+        }
+        catch (StorageException e) {
+            throw new DataException(e);
+        }
+        finally {
+            staged.release();
+        }
+    }
+
     private void commitCurrentBlob()
     {
+        if (blobName == null || !dryRun.uploads()) {
+            return;
+        }
+        if (blocks.isEmpty() && pendingBlocks.isEmpty()) {
+            return;
+        }
+        String md5 = digest != null ? BlobFingerprint.encode(digest) : null;
+        if (skipUnchanged && !uploadPendingBlocks(md5)) {
+            return;
+        }
         // commit blob
         if (!blocks.isEmpty()) {
+            final BlobAttributes attributes = tagged(BlobAttributes.withFingerprint(md5), blobLength);
+            long start = System.nanoTime();
+            Replicas.Batch copies = replicas.submit(blobName, (replica, name, replicaThrottle) -> retryPolicy.run(() -> send(replicaThrottle, 0, () -> {
+                replica.commitBlockList(name, blocks, attributes);
+                return null;
+            })));
             try {
-                blockBlob.commitBlockList(blocks);
-                logger.info("Committed file: {}", blockBlob.getName());
-                blocks.clear();
+                retryPolicy.run(() -> send(0, () -> {
+                    putBlockList(attributes);
+                    return null;
+                }));
+                copies.await();
             }
-            catch (StorageException e) {
-                throw new DataException(e);
+            catch (RuntimeException e) {
+                if (e.getCause() instanceof StorageException) {
+                    throw new DataException(e.getCause());
+                }
+                throw e;
+            }
+            finally {
+                copies.awaitQuietly();
+                stats.addCommitNanos(System.nanoTime() - start);
             }
+            logger.info("Committed file: {}", blobName);
+            recordUploaded(new WrittenBlob(blobName, blobLength, blocks.size(), md5));
+            blocks.clear();
+        }
+    }
+
+    private void putBlockList(BlobAttributes attributes) throws Exception
+    {
+        JfrEvents.Event event = JfrEvents.COMMIT_BLOCK_LIST.begin().set(0, blobName).set(1, blocks.size());
+        try {
+            store.commitBlockList(blobName, blocks, attributes);
+        }
+        finally {
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds the blob index tags of {@code blob_tags} for the current blob.
+     */
+    private BlobAttributes tagged(BlobAttributes attributes, long bytes)
+    {
+        if (tags.isEmpty()) {
+            return attributes;
+        }
+        Map<String, String> variables = new HashMap<>();
+        variables.put("run_id", runId != null ? runId : "");
+        variables.put("task_index", String.valueOf(taskIndex));
+        variables.put("file_index", String.valueOf(blobFileIndex));
+        variables.put("blob_name", blobName);
+        variables.put("bytes", String.valueOf(bytes));
+        return attributes.withTags(tags.expand(variables));
+    }
+
+    private boolean isCommitDue()
+    {
+        if (commitIntervalNanos <= 0 && commitIntervalBytes <= 0) {
+            return false;
+        }
+        long pendingLength = currentLength() - lastCommitLength;
+        if (pendingLength <= 0 || !dryRun.uploads()) {
+            return false;
         }
+        return (commitIntervalBytes > 0 && pendingLength >= commitIntervalBytes)
+                || (commitIntervalNanos > 0 && System.nanoTime() - lastCommitNanos >= commitIntervalNanos);
     }
 
-    private Void uploadFile()
+    /**
+     * Commits all blocks of the current blob uploaded so far, including blocks committed by earlier calls,
+     * so that readers see a consistent prefix of the blob while the task keeps writing.
+     */
+    private void commitUploadedBlocks()
     {
-        if (file.length() == 0) {
-            logger.warn("Skipped empty block {}", file.getName());
+        if (blocks.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Replicas.Batch copies = replicas.submit(blobName, (replica, name, replicaThrottle) -> retryPolicy.run(() -> send(replicaThrottle, 0, () -> {
+            replica.commitBlockList(name, blocks, BlobAttributes.none());
             return null;
+        })));
+        try {
+            retryPolicy.run(() -> send(0, () -> {
+                putBlockList(tagged(BlobAttributes.none(), blobLength));
+                return null;
+            }));
+            copies.await();
+        }
+        finally {
+            copies.awaitQuietly();
+            stats.addCommitNanos(System.nanoTime() - start);
         }
+        // the blocks are committed now, and must be looked up in the committed list by the next commit
+        for (BlockEntry entry : blocks) {
+            entry.setSearchMode(BlockSearchMode.COMMITTED);
+        }
+        lastCommitNanos = System.nanoTime();
+        lastCommitLength = blobLength;
+        trackUploaded(blobName);
+        logger.debug("Committed {} blocks ({} bytes) of {}", blocks.size(), blobLength, blobName);
+    }
 
+    private void recordUploaded(WrittenBlob written)
+    {
+        stats.addWrittenBlob(written);
+        trackUploaded(written.getName());
+    }
+
+    private void trackUploaded(String name)
+    {
+        if (name.equals(blobName)) {
+            if (blobTracked) {
+                return;
+            }
+            blobTracked = true;
+        }
+        uploadedBlobs.add(name);
+        replicas.recordUploaded(name);
+    }
+
+    /**
+     * Uploads the blocks kept for {@code skip_unchanged} unless the remote blob already has the same content.
+     *
+     * @return false if the blob is unchanged and the commit should be skipped
+     */
+    private boolean uploadPendingBlocks(String md5)
+    {
+        if (pendingBlocks.isEmpty()) {
+            return true;
+        }
+        long length = 0;
+        for (StagedBlock pending : pendingBlocks) {
+            length += pending.length();
+        }
         try {
-            return RetryExecutor.builder()
-                    .withRetryLimit(maxConnectionRetry)
-                    .withInitialRetryWaitMillis(500)
-                    .withMaxRetryWaitMillis(30 * 1000)
-                    .build()
-                    .runInterruptible(new Retryable<Void>() {
-                        @Override
-                        public Void call() throws IOException, StorageException
-                        {
-                            String blockId = Base64.getEncoder().encodeToString(String.format("%10d", blockIndex).getBytes());
-                            blockBlob.uploadBlock(blockId, new BufferedInputStream(new FileInputStream(file)), file.length());
-                            blocks.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
-                            logger.info("Uploaded block file: {}, id: {}, size ~ {}kb", file.getName(), blockId, file.length() / 1024);
-                            blockIndex++;
-                            return null;
-                        }
-
-                        @Override
-                        public boolean isRetryableException(Exception exception)
-                        {
-                            return true;
-                        }
-
-                        @Override
-                        public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
-                                throws RetryGiveupException
-                        {
-                            if (exception instanceof FileNotFoundException || exception instanceof URISyntaxException || exception instanceof ConfigException) {
-                                throw new RetryGiveupException(exception);
-                            }
-                            String message = String.format("Azure Blob Storage put request failed. Retrying %d/%d after %d seconds. Message: %s",
-                                    retryCount, retryLimit, retryWait / 1000, exception.getMessage());
-                            if (retryCount % 3 == 0) {
-                                logger.warn(message, exception);
-                            }
-                            else {
-                                logger.warn(message);
-                            }
-                        }
-
-                        @Override
-                        public void onGiveup(Exception firstException, Exception lastException)
-                        {
-                        }
-                    });
-        }
-        catch (RetryGiveupException ex) {
-            throw new RuntimeException(ex.getCause());
-        }
-        catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+            if (BlobFingerprint.isUnchanged(blob(), md5, tls.newOperationContext())) {
+                logger.info("Skipped unchanged blob {}", blobName);
+                stats.addSkipped(length);
+                stats.addWrittenBlob(new WrittenBlob(blobName, length, pendingBlocks.size(), md5));
+                for (StagedBlock pending : pendingBlocks) {
+                    pending.release();
+                }
+                return false;
+            }
+            for (StagedBlock pending : pendingBlocks) {
+                uploadBlock(pending);
+            }
+            return true;
+        }
+        catch (StorageException e) {
+            throw new DataException(e);
         }
         finally {
-            if (file.exists() && !file.delete()) {
-                logger.warn("Couldn't delete local file " + file.getAbsolutePath());
+            pendingBlocks.clear();
+        }
+    }
+
+    /**
+     * Uses the SHA-256 of the content as the block ID. A block which the existing blob already has is
+     * committed from the committed block list instead of being uploaded again.
+     */
+    private void stageDeltaBlock(StagedBlock staged)
+    {
+        if (staged.length() == 0) {
+            staged.release();
+            return;
+        }
+        String blockId = Base64.getEncoder().encodeToString(blockDigest.digest());
+        if (remoteBlockIds == null) {
+            remoteBlockIds = downloadCommittedBlockIds();
+        }
+        if (remoteBlockIds.contains(blockId)) {
+            blocks.add(new BlockEntry(blockId, BlockSearchMode.COMMITTED));
+            stats.addReused(staged.length());
+            staged.release();
+        }
+        else if (uploadedBlockIds.contains(blockId)) {
+            // same content appeared earlier in this blob
+            blocks.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+            stats.addReused(staged.length());
+            staged.release();
+        }
+        else {
+            uploadBlock(staged, blockId);
+            uploadedBlockIds.add(blockId);
+        }
+    }
+
+    private Set<String> downloadCommittedBlockIds()
+    {
+        Set<String> ids = new HashSet<>();
+        List<BlockEntry> committed = retryPolicy.run(() -> {
+            try {
+                return blob().downloadBlockList(BlockListingFilter.COMMITTED, null, null, tls.newOperationContext());
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return new ArrayList<BlockEntry>();
+                }
+                throw e;
+            }
+        });
+        for (BlockEntry entry : committed) {
+            ids.add(entry.getId());
+        }
+        logger.info("Existing blob {} has {} committed blocks", blobName, ids.size());
+        return ids;
+    }
+
+    private void uploadBlock(final StagedBlock block)
+    {
+        uploadBlock(block, Base64.getEncoder().encodeToString(String.format("%10d", blockIndex).getBytes()));
+    }
+
+    private void uploadBlock(final StagedBlock block, final String blockId)
+    {
+        if (block.length() == 0) {
+            logger.warn("Skipped empty block {}", block.getName());
+            block.release();
+            return;
+        }
+
+        long start = System.nanoTime();
+        Replicas.Batch copies = null;
+        try {
+            copies = replicas.submit(blobName, (replica, name, replicaThrottle) -> retryPolicy.run(() -> send(replicaThrottle, block.length(), () -> {
+                replica.stageBlock(name, blockId, block);
+                return null;
+            })));
+            List<BlockEntry> entries;
+            if (isSplittable(block)) {
+                try {
+                    retryPolicy.runAtMost(stageRequest(block, blockId), subBlockFallbackAfter);
+                    entries = Collections.singletonList(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+                }
+                catch (RetryPolicy.AttemptLimitException e) {
+                    entries = uploadSubBlocks(block);
+                }
+            }
+            else {
+                retryPolicy.run(stageRequest(block, blockId));
+                entries = Collections.singletonList(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+            }
+            copies.await();
+            blocks.addAll(entries);
+            logger.debug("Uploaded block: {}, id: {}, size ~ {}kb", block.getName(), blockId, block.length() / 1024);
+            stats.addTransferred(block.length());
+            blockIndex++;
+        }
+        finally {
+            // the replicas read the block until they finish
+            if (copies != null) {
+                copies.awaitQuietly();
+            }
+            stats.addUploadNanos(System.nanoTime() - start);
+            block.release();
+        }
+    }
+
+    private Callable<Void> stageRequest(StagedBlock block, String blockId)
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        return () -> send(block.length(), () -> {
+            JfrEvents.Event event = JfrEvents.BLOCK_UPLOAD.begin()
+                    .set(0, blobName).set(1, blockId).set(2, block.length()).set(3, attempts.incrementAndGet());
+            try {
+                store.stageBlock(blobName, blockId, block);
+                return null;
+            }
+            finally {
+                event.commit();
+            }
+        });
+    }
+
+    /**
+     * Delta blocks keep their content hash IDs, and replicas commit the same block list as the primary,
+     * so only blocks of the primary alone with sequential IDs are split.
+     */
+    private boolean isSplittable(StagedBlock block)
+    {
+        return subBlockFallbackAfter > 0 && chunker == null && replicas.isEmpty()
+                && block.length() > subBlockSize && (block.length() + subBlockSize - 1) / subBlockSize <= MAX_SUB_BLOCKS;
+    }
+
+    /**
+     * Stages the block again as sub-blocks, each retried on its own. A sub-block ID has the length of the
+     * sequential block IDs, because all block IDs of a blob must have the same length.
+     */
+    private List<BlockEntry> uploadSubBlocks(StagedBlock block)
+    {
+        SubBlock[] subBlocks = SubBlock.split(block, subBlockSize);
+        logger.warn("Uploading block {} failed {} times. Uploading it as {} sub-blocks of {} bytes",
+                block.getName(), subBlockFallbackAfter, subBlocks.length, subBlockSize);
+        List<BlockEntry> entries = new ArrayList<>(subBlocks.length);
+        for (SubBlock subBlock : subBlocks) {
+            String subBlockId = Base64.getEncoder().encodeToString(String.format("s%05d%04d", blockIndex, subBlock.getIndex()).getBytes());
+            retryPolicy.run(stageRequest(subBlock, subBlockId));
+            entries.add(new BlockEntry(subBlockId, BlockSearchMode.UNCOMMITTED));
+        }
+        return entries;
+    }
+
+    /**
+     * Sends one request under the shared {@link UploadThrottle}, and tells it whether the account throttled the request.
+     */
+    private <T> T send(long bytes, Callable<T> request) throws Exception
+    {
+        return send(throttle, bytes, request);
+    }
+
+    private <T> T send(UploadThrottle throttle, long bytes, Callable<T> request) throws Exception
+    {
+        try (UploadThrottle.Permit permit = throttle.acquire(bytes)) {
+            stats.getProgress().requestStarted();
+            try {
+                T result = request.call();
+                permit.success();
+                return result;
+            }
+            catch (Exception e) {
+                permit.failure(e);
+                throw e;
+            }
+            finally {
+                stats.getProgress().requestFinished();
             }
         }
     }
@@ -240,28 +910,56 @@ public class BlockBlobFileOutput implements TransactionalFileOutput
     @Override
     public void close()
     {
-        logger.info(">>> close");
+        logger.debug(">>> close");
         closeCurrentFile();
+        // give memory back to the staging budget if the task failed before uploading
+        if (block != null) {
+            block.release();
+        }
+        for (StagedBlock pending : pendingBlocks) {
+            pending.release();
+        }
+        pendingBlocks.clear();
+        replicas.close();
+        store.close();
     }
 
     @Override
     public void abort()
     {
-        try {
-            // delete if blob not exist <=> delete all uncommitted blocks
-            // if blob exist, leave it as is. uncommitted blocks will be garbage collected in 1 week.
-            if (!blockBlob.exists()) {
-                blockBlob.delete();
+        stats.getProgress().finish();
+        // Embulk cleans up its own temp file space, but not the directories of temp_dirs
+        if (tempFileSpace instanceof StripedTempFileSpace) {
+            tempFileSpace.cleanup();
+        }
+        // uncommitted blocks of the current blob are garbage collected by the service in 1 week.
+        if (deleteOnFailure && !uploadedBlobs.isEmpty()) {
+            try {
+                store.delete(uploadedBlobs);
+            }
+            catch (RuntimeException ex) {
+                // don't hide the failure of the task
+                logger.warn("Couldn't delete the blobs uploaded by task " + taskIndex, ex);
             }
+            uploadedBlobs.clear();
         }
-        catch (StorageException e) {
-            throw new DataException(e);
+        if (deleteOnFailure) {
+            replicas.deleteUploaded();
         }
     }
 
     @Override
     public TaskReport commit()
     {
-        return CONFIG_MAPPER_FACTORY.newTaskReport();
+        stats.getProgress().finish();
+        logger.info("Task {}: {}", taskIndex, stats.summary());
+        TaskReport report = stats.toTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport());
+        StripedTempFileSpace.report(tempFileSpace, report);
+        replicas.report(report);
+        if (deleteOnFailure) {
+            report.set("uploaded_blobs", uploadedBlobs);
+            replicas.reportUploaded(report);
+        }
+        return report;
     }
 }
@@ -0,0 +1,73 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.spi.TempFileSpace;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates staged blocks in memory while the JVM-wide {@link StagingMemoryBudget} allows,
+ * and in temp files otherwise.
+ */
+public class BlockStager
+{
+    private final TempFileSpace tempFileSpace;
+    private final boolean memoryFirst;
+    private int sequence;
+    private long memoryBlocks;
+    private long spilledBlocks;
+
+    public BlockStager(TempFileSpace tempFileSpace, long memoryBudget)
+    {
+        this.tempFileSpace = tempFileSpace;
+        this.memoryFirst = memoryBudget > 0;
+        if (memoryFirst) {
+            StagingMemoryBudget.ensureLimit(memoryBudget);
+        }
+    }
+
+    /**
+     * @param expectedSize maximum size the block is expected to grow to, reserved from the memory budget
+     */
+    public StagedBlock newBlock(long expectedSize) throws IOException
+    {
+        return newBlock(expectedSize, false);
+    }
+
+    /**
+     * @param keepBuffers whether a block in memory is a {@link BufferChainBlock}, which keeps the added buffers within the reserved size
+     */
+    public StagedBlock newBlock(long expectedSize, boolean keepBuffers) throws IOException
+    {
+        return newBlock(expectedSize, keepBuffers, MemoryStagedBlock.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize chunk size of a {@link MemoryStagedBlock}. Smaller chunks suit blocks which usually stay small.
+     */
+    public StagedBlock newBlock(long expectedSize, boolean keepBuffers, int chunkSize) throws IOException
+    {
+        if (memoryFirst && StagingMemoryBudget.tryReserve(expectedSize)) {
+            memoryBlocks++;
+            if (keepBuffers) {
+                return new BufferChainBlock("memory-block-" + sequence++, expectedSize);
+            }
+            return new MemoryStagedBlock("memory-block-" + sequence++, expectedSize, chunkSize);
+        }
+        if (memoryFirst) {
+            spilledBlocks++;
+        }
+        File file = tempFileSpace.createTempFile();
+        return new FileStagedBlock(file, StripedTempFileSpace.newOutputStream(tempFileSpace, file));
+    }
+
+    public long getMemoryBlocks()
+    {
+        return memoryBlocks;
+    }
+
+    public long getSpilledBlocks()
+    {
+        return spilledBlocks;
+    }
+}
@@ -0,0 +1,252 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.spi.Buffer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block staged in heap memory which keeps the {@link Buffer}s given to {@code add()} instead of copying them.
+ * The buffers are sent as they are when the block is uploaded, and released with the block.
+ *
+ * The capacity of the kept buffers and of the chunks which copied bytes are written to counts against the
+ * bytes reserved from {@link StagingMemoryBudget}. A buffer which doesn't fit is copied compactly, and the
+ * output starts a new block once {@link #isFull()}, so a block holds at most its reservation plus one buffer.
+ */
+public class BufferChainBlock implements StagedBlock
+{
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    // views of the content in order. the last one may be a copy chunk which is still being filled.
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final List<Buffer> buffers = new ArrayList<>();
+    private final String name;
+    private final long reservedBytes;
+    // heap held by the kept buffers and the copy chunks
+    private long retained;
+    private long length;
+    private ByteBuffer copyChunk;
+    private boolean released;
+
+    public BufferChainBlock(String name, long reservedBytes)
+    {
+        this.name = name;
+        this.reservedBytes = reservedBytes;
+    }
+
+    /**
+     * Takes over the buffer. It is released by {@link #release()}, or right away if it is copied.
+     */
+    public void append(Buffer buffer)
+    {
+        if (buffer.limit() == 0) {
+            buffer.release();
+            return;
+        }
+        if (retained + buffer.capacity() > reservedBytes) {
+            try {
+                copy(buffer.array(), buffer.offset(), buffer.limit());
+            }
+            finally {
+                buffer.release();
+            }
+            return;
+        }
+        buffers.add(buffer);
+        segments.add(ByteBuffer.wrap(buffer.array(), buffer.offset(), buffer.limit()).slice());
+        copyChunk = null;
+        retained += buffer.capacity();
+        length += buffer.limit();
+    }
+
+    /**
+     * Whether the held memory reached the reservation. Appending more goes beyond the budget.
+     */
+    public boolean isFull()
+    {
+        return retained >= reservedBytes;
+    }
+
+    /**
+     * Number of buffers kept without copying.
+     */
+    public int getBufferCount()
+    {
+        return buffers.size();
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                copy(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                copy(b, off, len);
+            }
+        };
+    }
+
+    private void copy(byte[] b, int off, int len)
+    {
+        while (len > 0) {
+            if (copyChunk == null || copyChunk.limit() == copyChunk.capacity()) {
+                // a chunk no larger than the rest of the reservation, unless the block is already full
+                int size = (int) Math.max(Math.min(COPY_CHUNK_SIZE, reservedBytes - retained), Math.min(COPY_CHUNK_SIZE, len));
+                copyChunk = ByteBuffer.wrap(new byte[size], 0, 0);
+                segments.add(copyChunk);
+                retained += size;
+            }
+            int pos = copyChunk.limit();
+            int n = Math.min(len, copyChunk.capacity() - pos);
+            System.arraycopy(b, off, copyChunk.array(), pos, n);
+            copyChunk.limit(pos + n);
+            off += n;
+            len -= n;
+            length += n;
+        }
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public InputStream openInputStream()
+    {
+        return new ChainInputStream(asByteBuffers());
+    }
+
+    /**
+     * Read-only views of the content, one per segment. The block must not be written or released while they are used.
+     */
+    public List<ByteBuffer> asByteBuffers()
+    {
+        List<ByteBuffer> views = new ArrayList<>(segments.size());
+        for (ByteBuffer segment : segments) {
+            views.add(segment.asReadOnlyBuffer());
+        }
+        return views;
+    }
+
+    @Override
+    public void release()
+    {
+        if (!released) {
+            released = true;
+            for (Buffer buffer : buffers) {
+                buffer.release();
+            }
+            buffers.clear();
+            segments.clear();
+            copyChunk = null;
+            StagingMemoryBudget.release(reservedBytes);
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    private static class ChainInputStream extends InputStream
+    {
+        private final List<ByteBuffer> segments;
+        private int segment;
+        private int markSegment;
+        private int markPosition;
+
+        ChainInputStream(List<ByteBuffer> segments)
+        {
+            this.segments = segments;
+        }
+
+        private ByteBuffer current()
+        {
+            while (segment < segments.size() && !segments.get(segment).hasRemaining()) {
+                segment++;
+            }
+            return segment < segments.size() ? segments.get(segment) : null;
+        }
+
+        @Override
+        public int read()
+        {
+            ByteBuffer current = current();
+            return current != null ? current.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer current = current();
+            if (current == null) {
+                return -1;
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = 0;
+            ByteBuffer current;
+            while (skipped < n && (current = current()) != null) {
+                int step = (int) Math.min(n - skipped, current.remaining());
+                current.position(current.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            long available = 0;
+            for (int i = segment; i < segments.size(); i++) {
+                available += segments.get(i).remaining();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, available);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit)
+        {
+            markSegment = segment;
+            markPosition = segment < segments.size() ? segments.get(segment).position() : 0;
+        }
+
+        @Override
+        public synchronized void reset()
+        {
+            for (int i = markSegment; i <= Math.min(segment, segments.size() - 1); i++) {
+                segments.get(i).position(i == markSegment ? markPosition : 0);
+            }
+            segment = markSegment;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.util.Random;
+
+/**
+ * Finds block boundaries from the content with a gear rolling hash, so that an insertion or deletion
+ * only changes the blocks around it and the following boundaries fall at the same content again.
+ *
+ * A boundary is cut where the high bits of the hash are zero, once the block reaches the minimum size,
+ * and always at the maximum size. Each shift moves the older bytes up, so bit n depends on the last n + 1
+ * bytes. Masking the high bits, as FastCDC does, makes the boundaries depend on up to the last 64 bytes;
+ * the low bits would only see the last few.
+ */
+public class ContentDefinedChunker
+{
+    // fixed seed, so that every run and every JVM cuts the same content at the same places
+    private static final long[] GEAR = newGear(0x617a757265626c62L);
+
+    private final long minSize;
+    private final long maxSize;
+    private final long mask;
+    private long hash;
+    private long length;
+
+    /**
+     * @param averageSize expected block size. Rounded down to a power of two.
+     */
+    public ContentDefinedChunker(long minSize, long averageSize, long maxSize)
+    {
+        if (minSize <= 0 || averageSize < minSize || maxSize < averageSize) {
+            throw new IllegalArgumentException("Block sizes must be 0 < min <= average <= max");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int bits = Long.numberOfTrailingZeros(Long.highestOneBit(averageSize));
+        this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    /**
+     * Scans {@code bytes[from, to)} as the continuation of the current block.
+     *
+     * @return the index just after the boundary, or -1 if the block doesn't end in this range
+     */
+    public int next(byte[] bytes, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            length++;
+            if (length < minSize) {
+                // hashing only matters near a possible boundary. the window of the gear hash is 64 bytes.
+                if (length > minSize - 64) {
+                    hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+                }
+                continue;
+            }
+            hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+            if ((hash & mask) == 0 || length >= maxSize) {
+                reset();
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    public void reset()
+    {
+        hash = 0;
+        length = 0;
+    }
+
+    private static long[] newGear(long seed)
+    {
+        Random random = new Random(seed);
+        long[] gear = new long[256];
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+        return gear;
+    }
+}
@@ -0,0 +1,60 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Optional;
+
+/**
+ * Extra destination of {@code destinations}. Blobs are written with the same names under its own path prefix.
+ */
+public class Destination
+{
+    private final String accountName;
+    private final String accountKey;
+    private final String container;
+    private final Optional<String> pathPrefix;
+
+    @JsonCreator
+    public Destination(
+            @JsonProperty("account_name") String accountName,
+            @JsonProperty("account_key") String accountKey,
+            @JsonProperty("container") String container,
+            @JsonProperty("path_prefix") Optional<String> pathPrefix)
+    {
+        this.accountName = accountName;
+        this.accountKey = accountKey;
+        this.container = container;
+        this.pathPrefix = pathPrefix != null ? pathPrefix : Optional.empty();
+    }
+
+    @JsonProperty("account_name")
+    public String getAccountName()
+    {
+        return accountName;
+    }
+
+    @JsonProperty("account_key")
+    public String getAccountKey()
+    {
+        return accountKey;
+    }
+
+    @JsonProperty("container")
+    public String getContainer()
+    {
+        return container;
+    }
+
+    @JsonProperty("path_prefix")
+    public Optional<String> getPathPrefix()
+    {
+        return pathPrefix;
+    }
+
+    @Override
+    public String toString()
+    {
+        return accountName + "/" + container;
+    }
+}
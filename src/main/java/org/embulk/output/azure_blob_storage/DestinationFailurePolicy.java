@@ -0,0 +1,31 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+/**
+ * How failures of extra {@code destinations} affect the task.
+ */
+public enum DestinationFailurePolicy
+{
+    /**
+     * Fail the task if any destination fails.
+     */
+    ALL,
+    /**
+     * Only the primary destination must succeed. A failed extra destination is skipped for the rest of the task,
+     * and reported in the task report.
+     */
+    PRIMARY;
+
+    public static DestinationFailurePolicy of(String value)
+    {
+        try {
+            return valueOf(value.toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new ConfigException("destination_failure_policy must be ALL or PRIMARY: " + value);
+        }
+    }
+}
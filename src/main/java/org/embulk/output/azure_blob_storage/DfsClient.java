@@ -0,0 +1,78 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal client of the Data Lake Storage Gen2 path API ({@code https://<account>.dfs.core.windows.net}).
+ *
+ * The storage SDK used by this plugin doesn't support the DFS endpoint, so requests are sent
+ * through the shared Jetty client with {@link StorageRestClient}.
+ */
+public class DfsClient implements AutoCloseable
+{
+    private final StorageRestClient rest;
+    private final String fileSystem;
+
+    public DfsClient(StorageRestClient rest, String fileSystem)
+    {
+        this.rest = rest;
+        this.fileSystem = fileSystem;
+    }
+
+    @Override
+    public void close()
+    {
+        rest.close();
+    }
+
+    public void createFile(String path) throws IOException, InterruptedException
+    {
+        execute("PUT", path, "resource=file", null);
+    }
+
+    public void createDirectory(String path) throws IOException, InterruptedException
+    {
+        execute("PUT", path, "resource=directory", null);
+    }
+
+    public void append(String path, long position, StagedBlock block) throws IOException, InterruptedException
+    {
+        rest.execute("PATCH", fileSystem + "/" + path, "action=append&position=" + position,
+                StorageRestClient.contentOf(block), block.length(), null, null);
+    }
+
+    public void flush(String path, long position) throws IOException, InterruptedException
+    {
+        execute("PATCH", path, "action=flush&position=" + position, null);
+    }
+
+    /**
+     * Renames a file atomically, replacing the destination if it exists.
+     */
+    public void rename(String source, String destination) throws IOException, InterruptedException
+    {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-rename-source", "/" + StorageRestClient.encodePath(fileSystem + "/" + source));
+        execute("PUT", destination, "mode=legacy", headers);
+    }
+
+    public void deleteRecursively(String path) throws IOException, InterruptedException
+    {
+        try {
+            execute("DELETE", path, "recursive=true", null);
+        }
+        catch (StorageHttpException ex) {
+            if (ex.getStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw ex;
+            }
+        }
+    }
+
+    private void execute(String method, String path, String query, Map<String, String> headers) throws IOException, InterruptedException
+    {
+        rest.execute(method, fileSystem + "/" + path, query, null, 0, null, headers);
+    }
+}
@@ -0,0 +1,329 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.DataException;
+import org.embulk.spi.TempFileSpace;
+import org.embulk.spi.TransactionalFileOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * Writes files through the Data Lake Storage Gen2 path API into the staging directory of the run.
+ *
+ * Each file is created, filled by parallel {@code append} requests at known positions, and completed with one
+ * {@code flush}. The transaction publishes the files by renaming each of them into the output directory.
+ */
+public class DfsFileOutput implements TransactionalFileOutput
+{
+    private static final int APPEND_SIZE = 16 * 1024 * 1024;
+    private static final int PARALLEL_APPENDS = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final DfsClient dfs;
+    private final String stagingDirectory;
+    private final String outputDirectory;
+    private final String fileNamePrefix;
+    private final String sequenceFormat;
+    private final String pathSuffix;
+    private final int taskIndex;
+    private final RetryPolicy retryPolicy;
+    private final boolean computeChecksum;
+    private final DryRun dryRun;
+    private final boolean keepBuffers;
+    private final BlockStager stager;
+    private final TempFileSpace tempFileSpace;
+    private final TransferStats stats;
+    private final UploadThrottle throttle;
+    private final ExecutorService executor;
+    private final Deque<Future<Void>> appends = new ArrayDeque<>();
+    private int fileIndex;
+    private String fileName;
+    private boolean created;
+    private long position;
+    private StagedBlock block;
+    private OutputStream output;
+    private MessageDigest digest;
+
+    public DfsFileOutput(DfsClient dfs, PluginTask task, int taskIndex, TempFileSpace tempFileSpace)
+    {
+        this.dfs = dfs;
+        this.stagingDirectory = stagingDirectory(task);
+        this.outputDirectory = outputDirectory(task);
+        this.fileNamePrefix = task.getPathPrefix().substring(outputDirectory.length() + 1);
+        this.sequenceFormat = task.getSequenceFormat();
+        this.pathSuffix = task.getFileNameExtension().startsWith(".") ? task.getFileNameExtension() : "." + task.getFileNameExtension();
+        this.taskIndex = taskIndex;
+        this.computeChecksum = task.getWriteManifest();
+        this.dryRun = DryRun.of(task.getDryRun());
+        this.keepBuffers = task.getKeepBuffers();
+        this.stager = new BlockStager(tempFileSpace, task.getStagingMemoryBudget());
+        this.tempFileSpace = tempFileSpace;
+        this.stats = new TransferStats(ProgressReporter.taskProgress(task.getRunId().orElse(null), taskIndex));
+        this.retryPolicy = RetryPolicy.of("Azure Data Lake Storage", task, stats.getProgress());
+        this.throttle = UploadThrottle.of(task);
+        this.executor = Executors.newFixedThreadPool(PARALLEL_APPENDS, runnable -> {
+            Thread thread = new Thread(runnable, "azure-dfs-append");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Directory part of {@code path_prefix}, which the files are published to.
+     */
+    static String outputDirectory(PluginTask task)
+    {
+        String prefix = task.getPathPrefix();
+        int slash = prefix.lastIndexOf('/');
+        if (slash <= 0) {
+            throw new ConfigException("use_dfs_endpoint requires path_prefix in a directory, e.g. 'out/sample_': " + prefix);
+        }
+        return prefix.substring(0, slash);
+    }
+
+    static String stagingDirectory(PluginTask task)
+    {
+        return outputDirectory(task) + ".embulk-" + task.getRunId().get();
+    }
+
+    @Override
+    public void nextFile()
+    {
+        if (dryRun == DryRun.DISCARD) {
+            fileIndex++;
+            return;
+        }
+        finishCurrentFile();
+        fileName = fileNamePrefix + String.format(sequenceFormat, taskIndex, fileIndex) + pathSuffix;
+        created = false;
+        position = 0;
+        digest = computeChecksum ? BlobFingerprint.newDigest() : null;
+        fileIndex++;
+    }
+
+    @Override
+    public void add(Buffer buffer)
+    {
+        boolean kept = false;
+        try {
+            if (dryRun == DryRun.DISCARD) {
+                stats.addStaged(buffer.limit(), 0);
+                return;
+            }
+            if (block == null) {
+                newStagedBlock();
+            }
+            long start = System.nanoTime();
+            int length = buffer.limit();
+            if (block instanceof BufferChainBlock) {
+                if (digest != null) {
+                    digest.update(buffer.array(), buffer.offset(), length);
+                }
+                // the block releases the buffer
+                ((BufferChainBlock) block).append(buffer);
+                kept = true;
+            }
+            else {
+                output.write(buffer.array(), buffer.offset(), length);
+            }
+            stats.addStaged(length, System.nanoTime() - start);
+            if (block.length() >= APPEND_SIZE || (block instanceof BufferChainBlock && ((BufferChainBlock) block).isFull())) {
+                submitAppend();
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        finally {
+            if (!kept) {
+                buffer.release();
+            }
+        }
+    }
+
+    private void newStagedBlock() throws IOException
+    {
+        block = stager.newBlock(APPEND_SIZE, keepBuffers);
+        output = block.getOutputStream();
+        if (digest != null) {
+            output = new DigestOutputStream(output, digest);
+        }
+    }
+
+    private void submitAppend() throws IOException
+    {
+        output.close();
+        final StagedBlock staged = block;
+        block = null;
+        output = null;
+        if (staged.length() == 0 || !dryRun.uploads()) {
+            staged.release();
+            return;
+        }
+        final String path = stagingPath();
+        createFile();
+        final long appendPosition = position;
+        position += staged.length();
+        while (appends.size() >= PARALLEL_APPENDS) {
+            await(appends.poll());
+        }
+        appends.add(executor.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                retryPolicy.run(() -> send(staged.length(), () -> {
+                    dfs.append(path, appendPosition, staged);
+                    return null;
+                }));
+                stats.addTransferred(staged.length());
+                return null;
+            }
+            finally {
+                stats.addUploadNanos(System.nanoTime() - start);
+                staged.release();
+            }
+        }));
+    }
+
+    private void createFile()
+    {
+        if (created) {
+            return;
+        }
+        final String path = stagingPath();
+        retryPolicy.run(() -> send(0, () -> {
+            dfs.createFile(path);
+            return null;
+        }));
+        created = true;
+    }
+
+    private void finishCurrentFile()
+    {
+        if (fileName == null) {
+            return;
+        }
+        try {
+            if (block != null) {
+                submitAppend();
+            }
+            while (!appends.isEmpty()) {
+                await(appends.poll());
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (dryRun.uploads()) {
+            // an empty file has no appends, but is still created and listed in the task report
+            createFile();
+            final String path = stagingPath();
+            final long length = position;
+            long start = System.nanoTime();
+            retryPolicy.run(() -> send(0, () -> {
+                dfs.flush(path, length);
+                return null;
+            }));
+            stats.addCommitNanos(System.nanoTime() - start);
+            logger.debug("Flushed file: {}", path);
+            String md5 = digest != null ? BlobFingerprint.encode(digest) : null;
+            stats.addWrittenBlob(new WrittenBlob(outputDirectory + "/" + fileName, length, 1, md5));
+        }
+        fileName = null;
+    }
+
+    private String stagingPath()
+    {
+        return stagingDirectory + "/" + fileName;
+    }
+
+    private void await(Future<Void> append)
+    {
+        try {
+            append.get();
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new DataException(cause);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        if (dryRun == DryRun.DISCARD) {
+            return;
+        }
+        finishCurrentFile();
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+        if (block != null) {
+            block.release();
+            block = null;
+        }
+        dfs.close();
+    }
+
+    @Override
+    public void abort()
+    {
+        stats.getProgress().finish();
+        // the staging directory is deleted by the transaction
+        if (tempFileSpace instanceof StripedTempFileSpace) {
+            tempFileSpace.cleanup();
+        }
+    }
+
+    @Override
+    public TaskReport commit()
+    {
+        stats.getProgress().finish();
+        logger.info("Task {}: {}", taskIndex, stats.summary());
+        TaskReport report = stats.toTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport());
+        StripedTempFileSpace.report(tempFileSpace, report);
+        return report;
+    }
+
+    private <T> T send(long bytes, Callable<T> request) throws Exception
+    {
+        try (UploadThrottle.Permit permit = throttle.acquire(bytes)) {
+            stats.getProgress().requestStarted();
+            try {
+                T result = request.call();
+                permit.success();
+                return result;
+            }
+            catch (Exception e) {
+                permit.failure(e);
+                throw e;
+            }
+            finally {
+                stats.getProgress().requestFinished();
+            }
+        }
+    }
+}
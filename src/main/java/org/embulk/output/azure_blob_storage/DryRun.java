@@ -0,0 +1,39 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+/**
+ * Levels of {@code dry_run}, to measure the cost of each stage separately.
+ */
+public enum DryRun
+{
+    /**
+     * Drop buffers in {@code add()}. Measures the input and the formatter.
+     */
+    DISCARD,
+    /**
+     * Stage blocks into memory or temp files, but never upload. Measures local staging.
+     */
+    STAGE_ONLY,
+    /**
+     * Upload as usual.
+     */
+    FULL;
+
+    public static DryRun of(String value)
+    {
+        try {
+            return valueOf(value.toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new ConfigException("dry_run must be one of DISCARD, STAGE_ONLY or FULL: " + value);
+        }
+    }
+
+    public boolean uploads()
+    {
+        return this == FULL;
+    }
+}
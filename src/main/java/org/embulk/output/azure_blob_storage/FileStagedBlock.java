@@ -0,0 +1,165 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Block staged in a local temp file.
+ */
+public class FileStagedBlock implements StagedBlock
+{
+    private static final Logger logger = LoggerFactory.getLogger(FileStagedBlock.class);
+
+    private final File file;
+    private final OutputStream output;
+    private long length;
+
+    public FileStagedBlock(File file) throws FileNotFoundException
+    {
+        this(file, new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    public FileStagedBlock(File file, OutputStream out)
+    {
+        this.file = file;
+        this.output = new FilterOutputStream(out)
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                out.write(b);
+                length++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+                length += len;
+            }
+        };
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return output;
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException
+    {
+        return new FileBlockInputStream(file);
+    }
+
+    @Override
+    public void release()
+    {
+        try {
+            output.close();
+        }
+        catch (IOException ex) {
+            logger.warn("Couldn't close local file " + file.getAbsolutePath(), ex);
+        }
+        if (file.exists() && !file.delete()) {
+            logger.warn("Couldn't delete local file " + file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return file.getName();
+    }
+
+    /**
+     * Seekable file stream. Unlike BufferedInputStream, mark/reset doesn't keep the read bytes in memory.
+     */
+    private static class FileBlockInputStream extends InputStream
+    {
+        private final RandomAccessFile raf;
+        private long mark;
+
+        FileBlockInputStream(File file) throws FileNotFoundException
+        {
+            this.raf = new RandomAccessFile(file, "r");
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return raf.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return raf.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long position = raf.getFilePointer();
+            long skipped = Math.max(0, Math.min(n, raf.length() - position));
+            raf.seek(position + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return (int) Math.min(Integer.MAX_VALUE, raf.length() - raf.getFilePointer());
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit)
+        {
+            try {
+                mark = raf.getFilePointer();
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public synchronized void reset() throws IOException
+        {
+            raf.seek(mark);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+import org.eclipse.jetty.client.util.BytesContentProvider;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BlobStore} which sends Put Block, Put Blob and Put Block List through the pooled Jetty client instead of
+ * the SDK's {@code HttpURLConnection} transport. Bodies are read straight from the staged blocks.
+ * Deletes are delegated to another store, because the SDK sends them as batches.
+ * Unlike the SDK, it can set blob index tags with {@code x-ms-tags} on Put Blob and Put Block List.
+ */
+public class JettyBlobStore implements BlobStore
+{
+    private final StorageRestClient rest;
+    private final String container;
+    private final BlobStore deletes;
+
+    public JettyBlobStore(StorageRestClient rest, String container, BlobStore deletes)
+    {
+        this.rest = rest;
+        this.container = container;
+        this.deletes = deletes;
+    }
+
+    @Override
+    public void close()
+    {
+        rest.close();
+        deletes.close();
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, StagedBlock block) throws IOException, InterruptedException
+    {
+        rest.execute("PUT", container + "/" + blobName, "comp=block&blockid=" + StorageRestClient.encode(blockId),
+                StorageRestClient.contentOf(block), block.length(), null, null);
+    }
+
+    @Override
+    public void putBlob(String blobName, StagedBlock content, BlobAttributes attributes) throws IOException, InterruptedException
+    {
+        Map<String, String> headers = blobHeaders(attributes);
+        headers.put("x-ms-blob-type", "BlockBlob");
+        rest.execute("PUT", container + "/" + blobName, null,
+                StorageRestClient.contentOf(content), content.length(), attributes.getContentType(), headers);
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<BlockEntry> blocks, BlobAttributes attributes)
+            throws IOException, InterruptedException
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        for (BlockEntry block : blocks) {
+            String element;
+            switch (block.getSearchMode()) {
+                case COMMITTED:
+                    element = "Committed";
+                    break;
+                case UNCOMMITTED:
+                    element = "Uncommitted";
+                    break;
+                default:
+                    element = "Latest";
+                    break;
+            }
+            xml.append('<').append(element).append('>').append(block.getId()).append("</").append(element).append('>');
+        }
+        xml.append("</BlockList>");
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+        rest.execute("PUT", container + "/" + blobName, "comp=blocklist",
+                new BytesContentProvider(body), body.length, "application/xml", blobHeaders(attributes));
+    }
+
+    @Override
+    public void delete(List<String> blobNames)
+    {
+        deletes.delete(blobNames);
+    }
+
+    private static Map<String, String> blobHeaders(BlobAttributes attributes)
+    {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (attributes.getContentMd5() != null) {
+            headers.put("x-ms-blob-content-md5", attributes.getContentMd5());
+        }
+        if (attributes.getContentType() != null) {
+            headers.put("x-ms-blob-content-type", attributes.getContentType());
+        }
+        for (Map.Entry<String, String> entry : attributes.getMetadata().entrySet()) {
+            headers.put("x-ms-meta-" + entry.getKey(), entry.getValue());
+        }
+        if (!attributes.getTags().isEmpty()) {
+            StringBuilder tags = new StringBuilder();
+            for (Map.Entry<String, String> tag : attributes.getTags().entrySet()) {
+                if (tags.length() > 0) {
+                    tags.append('&');
+                }
+                tags.append(StorageRestClient.encode(tag.getKey())).append('=').append(StorageRestClient.encode(tag.getValue()));
+            }
+            headers.put("x-ms-tags", tags.toString());
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,92 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * Jetty {@link HttpClient}s shared by all tasks in this JVM, for requests which are not sent through the storage SDK.
+ *
+ * Tasks with the same {@code http_*} and {@code tls_*} settings share one client, and so its connection pool.
+ * Each user holds a reference from {@link #acquire(PluginTask)} until {@link #release(HttpClient)}. The client is
+ * stopped with its threads and connections when the last reference is released, e.g. when the transaction ends.
+ */
+public final class JettyClients
+{
+    private static final Logger logger = LoggerFactory.getLogger(JettyClients.class);
+    private static final Map<String, HttpClient> CLIENTS = new HashMap<>();
+    private static final Map<HttpClient, Integer> REFERENCES = new HashMap<>();
+
+    private JettyClients()
+    {
+    }
+
+    /**
+     * Returns the client for the settings of the task, starting it if no one holds it. Pair each call with {@link #release(HttpClient)}.
+     */
+    public static synchronized HttpClient acquire(PluginTask task)
+    {
+        TlsSettings tls = TlsSettings.of(task);
+        String key = String.format("%d/%d/%d/%d/%s", task.getHttpMaxConnections(), task.getHttpConnectTimeout(),
+                task.getHttpIdleTimeout(), task.getHttpBufferSize(), tls.key());
+        HttpClient client = CLIENTS.get(key);
+        if (client == null) {
+            client = newClient(task, tls);
+            CLIENTS.put(key, client);
+        }
+        REFERENCES.merge(client, 1, Integer::sum);
+        return client;
+    }
+
+    public static synchronized void release(HttpClient client)
+    {
+        Integer references = REFERENCES.get(client);
+        if (references == null) {
+            return;
+        }
+        if (references > 1) {
+            REFERENCES.put(client, references - 1);
+            return;
+        }
+        REFERENCES.remove(client);
+        CLIENTS.values().remove(client);
+        try {
+            client.stop();
+        }
+        catch (Exception ex) {
+            logger.warn("Couldn't stop HTTP client", ex);
+        }
+    }
+
+    private static HttpClient newClient(PluginTask task, TlsSettings tls)
+    {
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        tls.configure(sslContextFactory);
+        HttpClient client = new HttpClient(sslContextFactory);
+        QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName("azure-blob-storage-http");
+        executor.setDaemon(true);
+        client.setExecutor(executor);
+        client.setMaxConnectionsPerDestination(task.getHttpMaxConnections());
+        client.setConnectTimeout(task.getHttpConnectTimeout());
+        client.setIdleTimeout(task.getHttpIdleTimeout());
+        client.setRequestBufferSize(task.getHttpBufferSize());
+        client.setResponseBufferSize(task.getHttpBufferSize());
+        client.setFollowRedirects(false);
+        client.setTCPNoDelay(true);
+        try {
+            client.start();
+        }
+        catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        return client;
+    }
+}
@@ -0,0 +1,225 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of staging, uploads and commits.
+ *
+ * The event types are defined at runtime with {@code jdk.jfr.EventFactory} through reflection, because the plugin
+ * is compiled for Java 8 where JFR may not exist. Without JFR, or while no recording enables an event,
+ * {@link EventType#begin()} returns a no-op event.
+ */
+public final class JfrEvents
+{
+    private static final Logger logger = LoggerFactory.getLogger(JfrEvents.class);
+    private static final String PREFIX = "org.embulk.output.azure_blob_storage.";
+    private static final Jfr JFR = Jfr.load();
+
+    /**
+     * Writes of {@code add()} which took longer than 10 ms. Fields: blob, bytes.
+     */
+    public static final EventType STAGING_STALL = new EventType("StagingStall", "Staging Stall", "10 ms",
+            String.class, "blob", long.class, "bytes");
+
+    /**
+     * Creation of a staged block in memory or in a temp file. Fields: blob, inMemory.
+     */
+    public static final EventType NEW_STAGED_BLOCK = new EventType("NewStagedBlock", "New Staged Block", null,
+            String.class, "blob", boolean.class, "inMemory");
+
+    /**
+     * Each attempt of Put Block. Fields: blob, blockId, bytes, attempt.
+     */
+    public static final EventType BLOCK_UPLOAD = new EventType("BlockUpload", "Block Upload", null,
+            String.class, "blob", String.class, "blockId", long.class, "bytes", int.class, "attempt");
+
+    /**
+     * Each attempt to upload a whole blob with one request. Fields: blob, bytes, attempt.
+     */
+    public static final EventType BLOB_UPLOAD = new EventType("BlobUpload", "Blob Upload", null,
+            String.class, "blob", long.class, "bytes", int.class, "attempt");
+
+    /**
+     * Put Block List. Fields: blob, blocks.
+     */
+    public static final EventType COMMIT_BLOCK_LIST = new EventType("CommitBlockList", "Commit Block List", null,
+            String.class, "blob", int.class, "blocks");
+
+    private JfrEvents()
+    {
+    }
+
+    public static boolean isAvailable()
+    {
+        return JFR != null;
+    }
+
+    public static class EventType
+    {
+        private final Object factory;
+        private final Object eventType;
+
+        private EventType(String name, String label, String threshold, Object... fields)
+        {
+            Object createdFactory = null;
+            Object createdType = null;
+            if (JFR != null) {
+                try {
+                    createdFactory = JFR.createFactory(PREFIX + name, label, threshold, fields);
+                    createdType = JFR.getEventType.invoke(createdFactory);
+                }
+                catch (Exception | LinkageError ex) {
+                    logger.debug("Couldn't define JFR event " + name, ex);
+                    createdFactory = null;
+                }
+            }
+            this.factory = createdFactory;
+            this.eventType = createdType;
+        }
+
+        /**
+         * Starts timing an event. Set the fields in the declared order, then call {@link Event#commit()}.
+         */
+        public Event begin()
+        {
+            if (factory == null) {
+                return Event.NOOP;
+            }
+            try {
+                if (!(Boolean) JFR.isEnabled.invoke(eventType)) {
+                    return Event.NOOP;
+                }
+                Object event = JFR.newEvent.invoke(factory);
+                JFR.begin.invoke(event);
+                return new Event(event);
+            }
+            catch (Exception ex) {
+                return Event.NOOP;
+            }
+        }
+    }
+
+    public static class Event
+    {
+        static final Event NOOP = new Event(null);
+
+        private final Object event;
+
+        private Event(Object event)
+        {
+            this.event = event;
+        }
+
+        public Event set(int index, Object value)
+        {
+            if (event != null) {
+                try {
+                    JFR.set.invoke(event, index, value);
+                }
+                catch (Exception ex) {
+                    logger.debug("Couldn't set JFR event field", ex);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Ends the event and commits it if it passes the threshold of the recording.
+         */
+        public void commit()
+        {
+            if (event != null) {
+                try {
+                    JFR.end.invoke(event);
+                    if ((Boolean) JFR.shouldCommit.invoke(event)) {
+                        JFR.commit.invoke(event);
+                    }
+                }
+                catch (Exception ex) {
+                    logger.debug("Couldn't commit JFR event", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reflective handles of the {@code jdk.jfr} API.
+     */
+    private static class Jfr
+    {
+        private Constructor<?> annotationElement;
+        private Constructor<?> valueDescriptor;
+        private Class<?> nameAnnotation;
+        private Class<?> labelAnnotation;
+        private Class<?> categoryAnnotation;
+        private Class<?> thresholdAnnotation;
+        private Method create;
+        private Method newEvent;
+        private Method getEventType;
+        private Method isEnabled;
+        private Method begin;
+        private Method end;
+        private Method shouldCommit;
+        private Method commit;
+        private Method set;
+
+        static Jfr load()
+        {
+            try {
+                Jfr jfr = new Jfr();
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+                jfr.annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+                jfr.valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+                jfr.nameAnnotation = Class.forName("jdk.jfr.Name");
+                jfr.labelAnnotation = Class.forName("jdk.jfr.Label");
+                jfr.categoryAnnotation = Class.forName("jdk.jfr.Category");
+                jfr.thresholdAnnotation = Class.forName("jdk.jfr.Threshold");
+                jfr.create = factoryClass.getMethod("create", List.class, List.class);
+                jfr.newEvent = factoryClass.getMethod("newEvent");
+                jfr.getEventType = factoryClass.getMethod("getEventType");
+                jfr.isEnabled = eventTypeClass.getMethod("isEnabled");
+                jfr.begin = eventClass.getMethod("begin");
+                jfr.end = eventClass.getMethod("end");
+                jfr.shouldCommit = eventClass.getMethod("shouldCommit");
+                jfr.commit = eventClass.getMethod("commit");
+                jfr.set = eventClass.getMethod("set", int.class, Object.class);
+                return jfr;
+            }
+            catch (ClassNotFoundException | NoSuchMethodException | LinkageError ex) {
+                logger.debug("Java Flight Recorder is not available. Events are disabled.");
+                return null;
+            }
+        }
+
+        Object createFactory(String name, String label, String threshold, Object[] fields) throws Exception
+        {
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotationElement.newInstance(asAnnotation(nameAnnotation), name));
+            annotations.add(annotationElement.newInstance(asAnnotation(labelAnnotation), label));
+            annotations.add(annotationElement.newInstance(asAnnotation(categoryAnnotation), new String[] {"Embulk", "Azure Blob Storage"}));
+            if (threshold != null) {
+                annotations.add(annotationElement.newInstance(asAnnotation(thresholdAnnotation), threshold));
+            }
+            List<Object> descriptors = new ArrayList<>();
+            for (int i = 0; i < fields.length; i += 2) {
+                descriptors.add(valueDescriptor.newInstance(fields[i], fields[i + 1]));
+            }
+            return create.invoke(null, annotations, descriptors);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> asAnnotation(Class<?> type)
+        {
+            return (Class<? extends Annotation>) type;
+        }
+    }
+}
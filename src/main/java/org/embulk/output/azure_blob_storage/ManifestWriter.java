@@ -0,0 +1,150 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the list of blobs committed by all tasks as one manifest blob, followed by a {@code _SUCCESS} marker.
+ * Downstream readers find the output with a single GET instead of listing the container.
+ */
+public class ManifestWriter
+{
+    public enum Format
+    {
+        JSON, CSV;
+
+        public static Format of(String value)
+        {
+            try {
+                return valueOf(value.toUpperCase(Locale.ENGLISH));
+            }
+            catch (IllegalArgumentException ex) {
+                throw new ConfigException("manifest_format must be JSON or CSV: " + value);
+            }
+        }
+    }
+
+    static final String SUCCESS_MARKER = "_SUCCESS";
+
+    private static final Logger logger = LoggerFactory.getLogger(ManifestWriter.class);
+
+    private final CloudBlobContainer container;
+    private final String pathPrefix;
+    private final Format format;
+    private final TlsSettings tls;
+    private final RetryPolicy retryPolicy;
+
+    public ManifestWriter(CloudBlobContainer container, String pathPrefix, Format format, TlsSettings tls, RetryPolicy retryPolicy)
+    {
+        this.container = container;
+        this.pathPrefix = pathPrefix;
+        this.format = format;
+        this.tls = tls;
+        this.retryPolicy = retryPolicy;
+    }
+
+    public String getManifestName()
+    {
+        return pathPrefix + "manifest." + format.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public String getSuccessMarkerName()
+    {
+        return pathPrefix + SUCCESS_MARKER;
+    }
+
+    public void write(List<TaskReport> taskReports) throws StorageException, URISyntaxException, IOException
+    {
+        List<WrittenBlob> blobs = collect(taskReports);
+        byte[] manifest = format == Format.JSON ? toJson(blobs) : toCsv(blobs);
+
+        CloudBlockBlob manifestBlob = container.getBlockBlobReference(getManifestName());
+        manifestBlob.getProperties().setContentType(format == Format.JSON ? "application/json" : "text/csv");
+        retryPolicy.run(() -> {
+            manifestBlob.uploadFromByteArray(manifest, 0, manifest.length, null, requestOptions(), tls.newOperationContext());
+            return null;
+        });
+        logger.info("Wrote manifest {} with {} blobs", manifestBlob.getName(), blobs.size());
+
+        // the marker is written last so that readers never see it without a complete manifest
+        CloudBlockBlob marker = container.getBlockBlobReference(getSuccessMarkerName());
+        retryPolicy.run(() -> {
+            marker.uploadFromByteArray(new byte[0], 0, 0, null, requestOptions(), tls.newOperationContext());
+            return null;
+        });
+    }
+
+    private static BlobRequestOptions requestOptions()
+    {
+        // retried by the RetryPolicy only
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setRetryPolicyFactory(new RetryNoRetry());
+        return options;
+    }
+
+    static List<WrittenBlob> collect(List<TaskReport> taskReports)
+    {
+        List<WrittenBlob> blobs = new ArrayList<>();
+        for (TaskReport report : taskReports) {
+            if (report.has("written_blobs")) {
+                for (WrittenBlob blob : report.get(WrittenBlob[].class, "written_blobs")) {
+                    blobs.add(blob);
+                }
+            }
+        }
+        return blobs;
+    }
+
+    static byte[] toJson(List<WrittenBlob> blobs) throws IOException
+    {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode entries = root.putArray("blobs");
+        long totalSize = 0;
+        for (WrittenBlob blob : blobs) {
+            entries.add(mapper.valueToTree(blob));
+            totalSize += blob.getSize();
+        }
+        root.put("blob_count", blobs.size());
+        root.put("total_size", totalSize);
+        return mapper.writeValueAsBytes(root);
+    }
+
+    static byte[] toCsv(List<WrittenBlob> blobs)
+    {
+        StringBuilder sb = new StringBuilder("name,size,block_count,content_md5\n");
+        for (WrittenBlob blob : blobs) {
+            sb.append(quote(blob.getName())).append(',')
+                    .append(blob.getSize()).append(',')
+                    .append(blob.getBlockCount()).append(',')
+                    .append(blob.getContentMd5() != null ? blob.getContentMd5() : "")
+                    .append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String quote(String value)
+    {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -0,0 +1,169 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block staged in heap memory. Content is kept in fixed-size chunks so that growing the block never copies it.
+ */
+public class MemoryStagedBlock implements StagedBlock
+{
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final long reservedBytes;
+    private final String name;
+    private final int chunkSize;
+    private long length;
+    private boolean released;
+
+    public MemoryStagedBlock(String name, long reservedBytes)
+    {
+        this(name, reservedBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MemoryStagedBlock(String name, long reservedBytes, int chunkSize)
+    {
+        this.name = name;
+        this.reservedBytes = reservedBytes;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                while (len > 0) {
+                    if (length == chunks.size() * (long) chunkSize) {
+                        chunks.add(new byte[chunkSize]);
+                    }
+                    int pos = (int) (length % chunkSize);
+                    int n = Math.min(len, chunkSize - pos);
+                    System.arraycopy(b, off, chunks.get(chunks.size() - 1), pos, n);
+                    off += n;
+                    len -= n;
+                    length += n;
+                }
+            }
+        };
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public InputStream openInputStream()
+    {
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Read-only views of the written content, one per chunk. The block must not be written or released while they are used.
+     */
+    public List<ByteBuffer> asByteBuffers()
+    {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            int size = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+            buffers.add(ByteBuffer.wrap(chunks.get(i), 0, size).asReadOnlyBuffer());
+        }
+        return buffers;
+    }
+
+    @Override
+    public void release()
+    {
+        if (!released) {
+            released = true;
+            chunks.clear();
+            StagingMemoryBudget.release(reservedBytes);
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    private class ChunkInputStream extends InputStream
+    {
+        private long position;
+        private long mark;
+
+        @Override
+        public int read()
+        {
+            if (position >= length) {
+                return -1;
+            }
+            int b = chunks.get((int) (position / chunkSize))[(int) (position % chunkSize)] & 0xff;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int pos = (int) (position % chunkSize);
+            int n = (int) Math.min(Math.min(len, chunkSize - pos), length - position);
+            System.arraycopy(chunks.get((int) (position / chunkSize)), pos, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit)
+        {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset()
+        {
+            position = mark;
+        }
+    }
+}
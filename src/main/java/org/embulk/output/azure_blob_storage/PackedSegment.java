@@ -0,0 +1,52 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A logical file stored as a byte range of a packed blob. Readers fetch it with a ranged GET.
+ */
+public class PackedSegment
+{
+    private final String blob;
+    private final String name;
+    private final long offset;
+    private final long length;
+
+    @JsonCreator
+    public PackedSegment(
+            @JsonProperty("blob") String blob,
+            @JsonProperty("name") String name,
+            @JsonProperty("offset") long offset,
+            @JsonProperty("length") long length)
+    {
+        this.blob = blob;
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @JsonProperty("blob")
+    public String getBlob()
+    {
+        return blob;
+    }
+
+    @JsonProperty("name")
+    public String getName()
+    {
+        return name;
+    }
+
+    @JsonProperty("offset")
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    @JsonProperty("length")
+    public long getLength()
+    {
+        return length;
+    }
+}
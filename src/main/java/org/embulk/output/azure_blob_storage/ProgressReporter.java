@@ -0,0 +1,194 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs the progress of all tasks of a run in this JVM at a fixed interval.
+ *
+ * Tasks only update counters of their {@link TaskProgress}. Rates and the ETA are computed by the reporter thread,
+ * so that nothing is logged per block or per {@code add()}.
+ */
+public class ProgressReporter
+{
+    private static final Logger logger = LoggerFactory.getLogger(ProgressReporter.class);
+    private static final ConcurrentMap<String, ProgressReporter> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String runId;
+    private final long totalBytes;
+    private final long startNanos = System.nanoTime();
+    private final Map<Integer, TaskProgress> tasks = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService scheduler;
+    private long lastNanos = startNanos;
+    private long lastUploadedBytes;
+
+    private ProgressReporter(String runId, long intervalSeconds, long totalBytes)
+    {
+        this.runId = runId;
+        this.totalBytes = totalBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "azure-blob-storage-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::reportSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts reporting the tasks of the run. Returns null if the interval is not positive.
+     */
+    public static ProgressReporter start(String runId, long intervalSeconds, long totalBytes)
+    {
+        if (intervalSeconds <= 0) {
+            return null;
+        }
+        ProgressReporter reporter = new ProgressReporter(runId, intervalSeconds, totalBytes);
+        INSTANCES.put(runId, reporter);
+        return reporter;
+    }
+
+    public void stop()
+    {
+        INSTANCES.remove(runId, this);
+        scheduler.shutdownNow();
+        report();
+    }
+
+    /**
+     * Returns the progress of a task. If no reporter runs in this JVM (e.g. tasks run on remote executors),
+     * the progress is counted but not logged.
+     */
+    public static TaskProgress taskProgress(String runId, int taskIndex)
+    {
+        TaskProgress progress = new TaskProgress(taskIndex);
+        ProgressReporter reporter = runId != null ? INSTANCES.get(runId) : null;
+        if (reporter != null) {
+            reporter.tasks.put(taskIndex, progress);
+        }
+        return progress;
+    }
+
+    private void reportSafely()
+    {
+        try {
+            report();
+        }
+        catch (RuntimeException ex) {
+            logger.debug("Couldn't report progress", ex);
+        }
+    }
+
+    private synchronized void report()
+    {
+        long now = System.nanoTime();
+        long staged = 0;
+        long uploaded = 0;
+        int inFlight = 0;
+        long retries = 0;
+        int running = 0;
+        List<String> taskRates = new ArrayList<>();
+        for (TaskProgress task : tasks.values()) {
+            long taskUploaded = task.uploadedBytes.get();
+            staged += task.stagedBytes.get();
+            uploaded += taskUploaded;
+            inFlight += task.inFlightRequests.get();
+            retries += task.retries.get();
+            if (!task.finished) {
+                running++;
+                taskRates.add(String.format("#%d %.1f", task.taskIndex, rate(taskUploaded - task.lastUploadedBytes, now - lastNanos)));
+            }
+            task.lastUploadedBytes = taskUploaded;
+        }
+        double currentRate = rate(uploaded - lastUploadedBytes, now - lastNanos);
+        double averageRate = rate(staged, now - startNanos);
+        lastNanos = now;
+        lastUploadedBytes = uploaded;
+
+        StringBuilder line = new StringBuilder(String.format(
+                "Progress: %d tasks running, %.1f MB staged, %.1f MB uploaded, %.1f MB/s, %d requests in flight, %d retries",
+                running, staged / 1024.0 / 1024.0, uploaded / 1024.0 / 1024.0, currentRate, inFlight, retries));
+        if (totalBytes > 0) {
+            line.append(String.format(", %.1f%%", Math.min(100.0, staged * 100.0 / totalBytes)));
+            if (averageRate > 0 && staged < totalBytes) {
+                long etaSeconds = (long) ((totalBytes - staged) / 1024.0 / 1024.0 / averageRate);
+                line.append(String.format(", ETA %dh%02dm%02ds", etaSeconds / 3600, etaSeconds / 60 % 60, etaSeconds % 60));
+            }
+        }
+        logger.info(line.toString());
+        if (!taskRates.isEmpty()) {
+            logger.info("Upload MB/s per task: {}", String.join(", ", taskRates));
+        }
+    }
+
+    private static double rate(long bytes, long nanos)
+    {
+        return nanos > 0 ? bytes * 1e9 / nanos / 1024.0 / 1024.0 : 0.0;
+    }
+
+    /**
+     * Counters of one task. Updated by the task thread and read by the reporter thread.
+     */
+    public static class TaskProgress
+    {
+        private final int taskIndex;
+        private final AtomicLong stagedBytes = new AtomicLong();
+        private final AtomicLong uploadedBytes = new AtomicLong();
+        private final AtomicInteger inFlightRequests = new AtomicInteger();
+        private final AtomicLong retries = new AtomicLong();
+        private volatile boolean finished;
+        // only accessed by the reporter
+        private long lastUploadedBytes;
+
+        TaskProgress(int taskIndex)
+        {
+            this.taskIndex = taskIndex;
+        }
+
+        public void addStaged(long bytes)
+        {
+            stagedBytes.addAndGet(bytes);
+        }
+
+        public void addUploaded(long bytes)
+        {
+            uploadedBytes.addAndGet(bytes);
+        }
+
+        public void requestStarted()
+        {
+            inFlightRequests.incrementAndGet();
+        }
+
+        public void requestFinished()
+        {
+            inFlightRequests.decrementAndGet();
+        }
+
+        public void addRetry()
+        {
+            retries.incrementAndGet();
+        }
+
+        public long getRetries()
+        {
+            return retries.get();
+        }
+
+        public void finish()
+        {
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * Extra {@code destinations} of a task. Each request sent to the primary destination is sent to every
+ * replica concurrently, reading the same staged block, so that formatting and local I/O happen once.
+ */
+public class Replicas implements AutoCloseable
+{
+    public interface Action
+    {
+        void run(BlobStore store, String blobName, UploadThrottle throttle) throws Exception;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Replicas.class);
+    private static final int DELETE_CONCURRENCY = 8;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final String primaryPrefix;
+    private final DestinationFailurePolicy policy;
+    private final ExecutorService executor;
+
+    public Replicas(PluginTask task)
+    {
+        this.primaryPrefix = task.getPathPrefix();
+        this.policy = DestinationFailurePolicy.of(task.getDestinationFailurePolicy());
+        TlsSettings tls = TlsSettings.of(task);
+        for (Destination destination : task.getDestinations()) {
+            try {
+                CloudBlobClient client = AzureBlobStorageFileOutputPlugin.newAzureClient(destination.getAccountName(), destination.getAccountKey());
+                BlobStore store = new SdkBlobStore(client, client.getContainerReference(destination.getContainer()), DELETE_CONCURRENCY, tls);
+                replicas.add(new Replica(destination, store, destination.getPathPrefix().orElse(primaryPrefix),
+                        UploadThrottle.of(destination.getAccountName(), task)));
+            }
+            catch (Exception ex) {
+                throw new ConfigException(ex);
+            }
+        }
+        this.executor = replicas.isEmpty() ? null : Executors.newFixedThreadPool(replicas.size(), runnable -> {
+            Thread thread = new Thread(runnable, "azure-blob-storage-replica");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEmpty()
+    {
+        return replicas.isEmpty();
+    }
+
+    /**
+     * Starts the action for the blob of each replica which hasn't failed. {@link Batch#await()} must be called
+     * before the data read by the action is released.
+     */
+    public Batch submit(String primaryName, Action action)
+    {
+        Batch batch = new Batch();
+        for (Replica replica : replicas) {
+            if (replica.failed) {
+                continue;
+            }
+            final String blobName = replica.nameOf(primaryName);
+            batch.replicas.add(replica);
+            batch.futures.add(executor.submit(() -> {
+                action.run(replica.store, blobName, replica.throttle);
+                return null;
+            }));
+        }
+        return batch;
+    }
+
+    public void recordUploaded(String primaryName)
+    {
+        for (Replica replica : replicas) {
+            if (!replica.failed) {
+                replica.uploaded.add(replica.nameOf(primaryName));
+            }
+        }
+    }
+
+    public void deleteUploaded()
+    {
+        for (Replica replica : replicas) {
+            if (!replica.uploaded.isEmpty()) {
+                try {
+                    replica.store.delete(new ArrayList<>(replica.uploaded));
+                }
+                catch (RuntimeException ex) {
+                    logger.warn("Couldn't delete the uploaded blobs of destination {}", replica.destination, ex);
+                }
+                replica.uploaded.clear();
+            }
+        }
+    }
+
+    public void report(TaskReport report)
+    {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (Replica replica : replicas) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("account_name", replica.destination.getAccountName());
+            entry.put("container", replica.destination.getContainer());
+            entry.put("path_prefix", replica.prefix);
+            entry.put("written_blobs", replica.uploaded.size());
+            entry.put("failed", replica.failed);
+            if (replica.error != null) {
+                entry.put("error", replica.error);
+            }
+            entries.add(entry);
+        }
+        report.set("destinations", entries);
+    }
+
+    /**
+     * Adds the names of the blobs uploaded to each destination, in the order of {@code destinations},
+     * so that the transaction can delete them when the run fails.
+     */
+    public void reportUploaded(TaskReport report)
+    {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        List<List<String>> names = new ArrayList<>();
+        for (Replica replica : replicas) {
+            names.add(new ArrayList<>(replica.uploaded));
+        }
+        report.set("destination_uploaded_blobs", names);
+    }
+
+    @Override
+    public void close()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public class Batch
+    {
+        private final List<Replica> replicas = new ArrayList<>();
+        private final List<Future<Void>> futures = new ArrayList<>();
+        private boolean joined;
+
+        private Batch()
+        {
+        }
+
+        /**
+         * Waits for all replicas, and applies the failure policy.
+         */
+        public void await()
+        {
+            List<Exception> errors = join();
+            for (int i = 0; i < errors.size(); i++) {
+                Exception error = errors.get(i);
+                if (error == null) {
+                    continue;
+                }
+                Replica replica = replicas.get(i);
+                if (policy == DestinationFailurePolicy.ALL) {
+                    throw new DataException("Upload to destination " + replica.destination + " failed", error);
+                }
+                replica.failed = true;
+                replica.error = String.valueOf(error.getMessage());
+                logger.warn("Upload to destination {} failed. It is skipped for the rest of this task.", replica.destination, error);
+            }
+        }
+
+        /**
+         * Waits for all replicas without applying the policy. Used when the primary request failed.
+         */
+        public void awaitQuietly()
+        {
+            join();
+        }
+
+        private List<Exception> join()
+        {
+            if (joined) {
+                return Collections.emptyList();
+            }
+            joined = true;
+            List<Exception> errors = new ArrayList<>();
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                    errors.add(null);
+                }
+                catch (ExecutionException ex) {
+                    errors.add(ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+            }
+            return errors;
+        }
+    }
+
+    private class Replica
+    {
+        private final Destination destination;
+        private final BlobStore store;
+        private final String prefix;
+        private final UploadThrottle throttle;
+        private final List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failed;
+        private volatile String error;
+
+        Replica(Destination destination, BlobStore store, String prefix, UploadThrottle throttle)
+        {
+            this.destination = destination;
+            this.store = store;
+            this.prefix = prefix;
+            this.throttle = throttle;
+        }
+
+        String nameOf(String primaryName)
+        {
+            return primaryName.startsWith(primaryPrefix) ? prefix + primaryName.substring(primaryPrefix.length()) : prefix + primaryName;
+        }
+    }
+}
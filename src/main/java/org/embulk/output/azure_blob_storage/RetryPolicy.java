@@ -0,0 +1,246 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * Retries of the requests of one task.
+ *
+ * Only transient errors are retried: network errors, 408, 429 and 5xx. Waits are drawn with full jitter
+ * from {@code [0, min(max, initial * 2^n))}, and are at least as long as the {@code x-ms-retry-after-ms}
+ * or {@code Retry-After} of the response. All requests of the task share one budget of retries,
+ * so a task whose requests keep failing gives up instead of retrying each of them {@code max_connection_retry} times.
+ */
+public class RetryPolicy
+{
+    static final long INITIAL_WAIT_MILLIS = 500;
+    static final long MAX_WAIT_MILLIS = 30 * 1000;
+    // server hints longer than this are not waited for in full
+    static final long MAX_SERVER_HINT_MILLIS = 5 * 60 * 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+    // Retry-After of the last response which the SDK received on this thread. The SDK sends requests on the calling thread.
+    private static final ThreadLocal<Long> SDK_SERVER_HINT = new ThreadLocal<>();
+    private static boolean sdkListenerInstalled;
+
+    private final String service;
+    private final int maxRetries;
+    private final AtomicInteger budget;
+    private final ProgressReporter.TaskProgress progress;
+
+    public RetryPolicy(String service, int maxRetries, int budget, ProgressReporter.TaskProgress progress)
+    {
+        this.service = service;
+        this.maxRetries = maxRetries;
+        this.budget = budget > 0 ? new AtomicInteger(budget) : null;
+        this.progress = progress;
+        installSdkListener();
+    }
+
+    public static RetryPolicy of(String service, PluginTask task, ProgressReporter.TaskProgress progress)
+    {
+        return new RetryPolicy(service, task.getMaxConnectionRetry(), task.getRetryBudget(), progress);
+    }
+
+    /**
+     * Calls the action until it succeeds, a permanent error occurs, or the retries run out.
+     * A checked exception of the last attempt is thrown wrapped in a {@link RuntimeException}.
+     */
+    public <T> T run(Callable<T> action)
+    {
+        return attempt(action, maxRetries, false);
+    }
+
+    /**
+     * Same as {@link #run(Callable)}, but stops after {@code attempts} attempts, which must not be more than
+     * {@code max_connection_retry + 1}, so that the caller can try another way. Only reaching that number
+     * throws {@link AttemptLimitException}. Running out of the retry budget throws the error as {@code run} does.
+     */
+    public <T> T runAtMost(Callable<T> action, int attempts)
+    {
+        return attempt(action, Math.min(maxRetries, attempts - 1), true);
+    }
+
+    private <T> T attempt(Callable<T> action, int retries, boolean limited)
+    {
+        int retry = 0;
+        while (true) {
+            SDK_SERVER_HINT.remove();
+            try {
+                return action.call();
+            }
+            catch (Exception e) {
+                if (isInterrupt(e)) {
+                    // the interrupt was consumed by whoever threw it. keep the task cancellable.
+                    Thread.currentThread().interrupt();
+                    throw propagate(e);
+                }
+                if (!isRetryable(e)) {
+                    throw propagate(e);
+                }
+                if (retry >= retries) {
+                    if (limited) {
+                        logger.warn("{} request failed {} times.", service, retry + 1);
+                        throw new AttemptLimitException(retry + 1, e);
+                    }
+                    logger.warn("{} request failed {} times. Giving up.", service, retry + 1);
+                    throw propagate(e);
+                }
+                if (budget != null && budget.getAndDecrement() <= 0) {
+                    logger.warn("{} request failed and the retry budget of the task is used up. Giving up.", service);
+                    throw propagate(e);
+                }
+                retry++;
+                long wait = waitMillis(retry, serverHintMillis(e));
+                progress.addRetry();
+                String message = String.format("%s request failed. Retrying %d/%d after %d ms. Message: %s",
+                        service, retry, retries, wait, e.getMessage());
+                if (retry % 3 == 0) {
+                    logger.warn(message, e);
+                }
+                else {
+                    logger.warn(message);
+                }
+                try {
+                    Thread.sleep(wait);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Full jitter, but never shorter than the server asked for.
+     */
+    static long waitMillis(int retry, long serverHintMillis)
+    {
+        long ceiling = MAX_WAIT_MILLIS;
+        if (retry <= 30) {
+            ceiling = Math.min(MAX_WAIT_MILLIS, INITIAL_WAIT_MILLIS << (retry - 1));
+        }
+        long jittered = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(jittered, Math.min(serverHintMillis, MAX_SERVER_HINT_MILLIS));
+    }
+
+    static boolean isRetryable(Exception e)
+    {
+        if (e instanceof StorageException) {
+            return isRetryableStatus(((StorageException) e).getHttpStatusCode());
+        }
+        if (e instanceof StorageHttpException) {
+            return isRetryableStatus(((StorageHttpException) e).getStatusCode());
+        }
+        if (e instanceof FileNotFoundException || e instanceof URISyntaxException || e instanceof ConfigException || isInterrupt(e)) {
+            return false;
+        }
+        Throwable cause = e.getCause();
+        if (cause instanceof StorageException || cause instanceof StorageHttpException) {
+            return isRetryable((Exception) cause);
+        }
+        // network errors and anything unknown
+        return true;
+    }
+
+    static boolean isInterrupt(Exception e)
+    {
+        return e instanceof InterruptedException || e.getCause() instanceof InterruptedException;
+    }
+
+    /**
+     * Statuses below 400 mean that no error response was received, e.g. the SDK's 306 for client side I/O errors.
+     */
+    static boolean isRetryableStatus(int status)
+    {
+        if (status < 400) {
+            return true;
+        }
+        return status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == 429 || status >= 500;
+    }
+
+    private static long serverHintMillis(Exception e)
+    {
+        if (e instanceof StorageHttpException) {
+            return ((StorageHttpException) e).getRetryAfterMillis();
+        }
+        if (e instanceof StorageException || e.getCause() instanceof StorageException) {
+            Long hint = SDK_SERVER_HINT.get();
+            return hint != null ? hint : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Parses {@code x-ms-retry-after-ms}, or {@code Retry-After} in seconds. Returns 0 without a hint.
+     */
+    static long parseServerHint(String retryAfterMillis, String retryAfterSeconds)
+    {
+        try {
+            if (retryAfterMillis != null) {
+                return Math.max(0, Long.parseLong(retryAfterMillis.trim()));
+            }
+            if (retryAfterSeconds != null) {
+                return Math.max(0, Long.parseLong(retryAfterSeconds.trim()) * 1000);
+            }
+        }
+        catch (NumberFormatException ex) {
+            // Retry-After may be an HTTP date, which the storage service doesn't send
+        }
+        return 0;
+    }
+
+    private static RuntimeException propagate(Exception e)
+    {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new RuntimeException(e);
+    }
+
+    /**
+     * Thrown by {@link #runAtMost} when all of the given attempts failed with retryable errors.
+     */
+    public static class AttemptLimitException extends RuntimeException
+    {
+        AttemptLimitException(int attempts, Exception lastError)
+        {
+            super("Failed " + attempts + " attempts", lastError);
+        }
+    }
+
+    private static synchronized void installSdkListener()
+    {
+        if (sdkListenerInstalled) {
+            return;
+        }
+        OperationContext.getGlobalResponseReceivedEventHandler().addListener(new StorageEvent<ResponseReceivedEvent>()
+        {
+            @Override
+            public void eventOccurred(ResponseReceivedEvent event)
+            {
+                if (event.getConnectionObject() instanceof HttpURLConnection) {
+                    HttpURLConnection connection = (HttpURLConnection) event.getConnectionObject();
+                    SDK_SERVER_HINT.set(parseServerHint(connection.getHeaderField("x-ms-retry-after-ms"), connection.getHeaderField("Retry-After")));
+                }
+            }
+        });
+        sdkListenerInstalled = true;
+    }
+}
@@ -0,0 +1,93 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import org.embulk.config.ConfigException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.List;
+
+/**
+ * {@link BlobStore} which sends requests with the storage SDK.
+ *
+ * The retries of the SDK are disabled for these requests, because callers retry them with {@link RetryPolicy}.
+ * Retries inside the SDK would multiply the attempts and ignore the retry budget of the task.
+ */
+public class SdkBlobStore implements BlobStore
+{
+    private final CloudBlobClient client;
+    private final CloudBlobContainer container;
+    private final int deleteConcurrency;
+    private final TlsSettings tls;
+
+    public SdkBlobStore(CloudBlobClient client, CloudBlobContainer container, int deleteConcurrency, TlsSettings tls)
+    {
+        this.client = client;
+        this.container = container;
+        this.deleteConcurrency = deleteConcurrency;
+        this.tls = tls;
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, StagedBlock block)
+            throws StorageException, URISyntaxException, IOException
+    {
+        try (InputStream in = block.openInputStream()) {
+            container.getBlockBlobReference(blobName).uploadBlock(blockId, in, block.length(), null, requestOptions(), tls.newOperationContext());
+        }
+    }
+
+    @Override
+    public void putBlob(String blobName, StagedBlock content, BlobAttributes attributes)
+            throws StorageException, URISyntaxException, IOException
+    {
+        CloudBlockBlob blob = blob(blobName, attributes);
+        try (InputStream in = content.openInputStream()) {
+            blob.upload(in, content.length(), null, requestOptions(), tls.newOperationContext());
+        }
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<BlockEntry> blocks, BlobAttributes attributes)
+            throws StorageException, URISyntaxException
+    {
+        blob(blobName, attributes).commitBlockList(blocks, null, requestOptions(), tls.newOperationContext());
+    }
+
+    @Override
+    public void delete(List<String> blobNames)
+    {
+        new BlobDeleter(client, container, deleteConcurrency, tls).deleteAll(blobNames);
+    }
+
+    private static BlobRequestOptions requestOptions()
+    {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setRetryPolicyFactory(new RetryNoRetry());
+        return options;
+    }
+
+    private CloudBlockBlob blob(String blobName, BlobAttributes attributes) throws StorageException, URISyntaxException
+    {
+        if (!attributes.getTags().isEmpty()) {
+            // the SDK doesn't know x-ms-tags. blob_tags is rejected in the transaction unless http_transport is JETTY.
+            throw new ConfigException("blob_tags requires http_transport: JETTY");
+        }
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        blob.getMetadata().putAll(attributes.getMetadata());
+        if (attributes.getContentMd5() != null) {
+            blob.getProperties().setContentMD5(attributes.getContentMd5());
+        }
+        if (attributes.getContentType() != null) {
+            blob.getProperties().setContentType(attributes.getContentType());
+        }
+        return blob;
+    }
+}
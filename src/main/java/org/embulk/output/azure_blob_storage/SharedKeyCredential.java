@@ -0,0 +1,122 @@
+package org.embulk.output.azure_blob_storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Signs REST requests to the Blob and Data Lake Storage endpoints with the Shared Key scheme,
+ * for requests which are not sent through the storage SDK.
+ */
+public class SharedKeyCredential
+{
+    private static final String[] STANDARD_HEADERS = {
+        "Content-Encoding", "Content-Language", "Content-Length", "Content-MD5", "Content-Type", "Date",
+        "If-Modified-Since", "If-Match", "If-None-Match", "If-Unmodified-Since", "Range",
+    };
+
+    private final String accountName;
+    private final byte[] accountKey;
+
+    public SharedKeyCredential(String accountName, String accountKey)
+    {
+        this.accountName = accountName;
+        this.accountKey = Base64.getDecoder().decode(accountKey);
+    }
+
+    public String getAccountName()
+    {
+        return accountName;
+    }
+
+    /**
+     * Returns the value of the {@code Authorization} header.
+     *
+     * @param headers all headers which will be sent. {@code Content-Length} and {@code Content-Type} must be
+     *                set explicitly because they are part of the signature.
+     */
+    public String authorization(String method, URI uri, Map<String, String> headers)
+    {
+        Map<String, String> lookup = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        lookup.putAll(headers);
+
+        StringBuilder toSign = new StringBuilder(method.toUpperCase(Locale.ENGLISH)).append('\n');
+        for (String name : STANDARD_HEADERS) {
+            String value = lookup.getOrDefault(name, "");
+            if (name.equals("Content-Length") && value.equals("0")) {
+                value = "";
+            }
+            toSign.append(value).append('\n');
+        }
+
+        Map<String, String> msHeaders = new TreeMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if (name.startsWith("x-ms-")) {
+                msHeaders.put(name, header.getValue().trim());
+            }
+        }
+        for (Map.Entry<String, String> header : msHeaders.entrySet()) {
+            toSign.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+
+        toSign.append('/').append(accountName).append(uri.getRawPath());
+        for (Map.Entry<String, List<String>> param : queryParameters(uri).entrySet()) {
+            List<String> values = param.getValue();
+            Collections.sort(values);
+            toSign.append('\n').append(param.getKey()).append(':').append(String.join(",", values));
+        }
+
+        return "SharedKey " + accountName + ":" + hmac(toSign.toString());
+    }
+
+    private String hmac(String toSign)
+    {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(accountKey, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal(toSign.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Map<String, List<String>> queryParameters(URI uri)
+    {
+        Map<String, List<String>> params = new TreeMap<>();
+        String query = uri.getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = decode(eq < 0 ? pair : pair.substring(0, eq)).toLowerCase(Locale.ENGLISH);
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String decode(String value)
+    {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
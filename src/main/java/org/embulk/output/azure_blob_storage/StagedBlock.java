@@ -0,0 +1,34 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A block of output which is written locally before it is uploaded.
+ */
+public interface StagedBlock
+{
+    /**
+     * Stream to write the block content. Closing it finishes writing.
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Number of bytes written so far.
+     */
+    long length();
+
+    /**
+     * Opens a stream to read the written content. The stream supports {@code mark}/{@code reset}
+     * so that the SDK can retry without copying it into another buffer.
+     */
+    InputStream openInputStream() throws IOException;
+
+    /**
+     * Deletes the local content. The block can't be read afterwards.
+     */
+    void release();
+
+    String getName();
+}
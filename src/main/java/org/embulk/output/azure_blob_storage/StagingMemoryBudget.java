@@ -0,0 +1,63 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-JVM budget of heap memory which staged blocks may use.
+ *
+ * When uploads fall behind, the budget runs out and new blocks are staged into temp files
+ * until uploaded blocks give their memory back.
+ */
+public final class StagingMemoryBudget
+{
+    private static final AtomicLong LIMIT = new AtomicLong(0);
+    private static final AtomicLong USED = new AtomicLong(0);
+
+    private StagingMemoryBudget()
+    {
+    }
+
+    /**
+     * Sets the budget if it is larger than the current one. All tasks in the JVM share the largest configured budget.
+     */
+    public static void ensureLimit(long bytes)
+    {
+        LIMIT.accumulateAndGet(bytes, Math::max);
+    }
+
+    static long getLimit()
+    {
+        return LIMIT.get();
+    }
+
+    /**
+     * Replaces the budget, also by a smaller one. Tests restore the budget of the JVM with this.
+     */
+    static void setLimit(long bytes)
+    {
+        LIMIT.set(bytes);
+    }
+
+    public static boolean tryReserve(long bytes)
+    {
+        while (true) {
+            long used = USED.get();
+            if (used + bytes > LIMIT.get()) {
+                return false;
+            }
+            if (USED.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    public static void release(long bytes)
+    {
+        USED.addAndGet(-bytes);
+    }
+
+    public static long getUsed()
+    {
+        return USED.get();
+    }
+}
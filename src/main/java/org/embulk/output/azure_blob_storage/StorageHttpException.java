@@ -0,0 +1,44 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.IOException;
+
+/**
+ * Error response of a REST request sent without the storage SDK.
+ */
+public class StorageHttpException extends IOException
+{
+    private final int statusCode;
+    private final String errorCode;
+    private final long retryAfterMillis;
+
+    public StorageHttpException(int statusCode, String errorCode, String message)
+    {
+        this(statusCode, errorCode, message, 0);
+    }
+
+    public StorageHttpException(int statusCode, String errorCode, String message, long retryAfterMillis)
+    {
+        super(String.format("%d %s: %s", statusCode, errorCode, message));
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    public String getErrorCode()
+    {
+        return errorCode;
+    }
+
+    /**
+     * Wait which the service asked for with {@code x-ms-retry-after-ms} or {@code Retry-After}, or 0.
+     */
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+}
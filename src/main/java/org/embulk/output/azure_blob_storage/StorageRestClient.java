@@ -0,0 +1,165 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.ByteBufferContentProvider;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamContentProvider;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends REST requests signed with {@link SharedKeyCredential} to one storage endpoint through a Jetty {@link HttpClient}.
+ * {@link #close()} releases the client to {@link JettyClients}.
+ */
+public class StorageRestClient implements AutoCloseable
+{
+    static final String API_VERSION = "2020-02-10";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final HttpClient http;
+    private final SharedKeyCredential credential;
+    private final String endpoint;
+    private final long timeoutMillis;
+    private boolean closed;
+
+    /**
+     * @param service {@code blob} or {@code dfs}
+     */
+    public StorageRestClient(HttpClient http, String accountName, String accountKey, String service, long timeoutMillis)
+    {
+        this.http = http;
+        this.credential = new SharedKeyCredential(accountName, accountKey);
+        this.endpoint = "https://" + accountName + "." + service + ".core.windows.net";
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (!closed) {
+            closed = true;
+            JettyClients.release(http);
+        }
+    }
+
+    /**
+     * @param path path under the endpoint, not encoded
+     * @param query encoded query string, or null
+     * @param content request body, or null. Sent with {@code length} as {@code Content-Length}.
+     */
+    public ContentResponse execute(String method, String path, String query, ContentProvider content, long length,
+                                   String contentType, Map<String, String> extraHeaders) throws IOException, InterruptedException
+    {
+        URI uri = URI.create(endpoint + "/" + encodePath(path) + (query != null ? "?" + query : ""));
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        headers.put("x-ms-version", API_VERSION);
+        if (extraHeaders != null) {
+            headers.putAll(extraHeaders);
+        }
+        if (!method.equals("HEAD") && !method.equals("DELETE") && !method.equals("GET")) {
+            // Jetty adds these for any content, and they are part of the signature
+            headers.put("Content-Length", String.valueOf(length));
+            headers.put("Content-Type", contentType != null ? contentType : "application/octet-stream");
+            if (content == null) {
+                content = new BytesContentProvider(new byte[0]);
+            }
+        }
+        headers.put("Authorization", credential.authorization(method, uri, headers));
+
+        Request request = http.newRequest(uri)
+                .method(method)
+                .timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.header(header.getKey(), header.getValue());
+        }
+        if (content != null) {
+            request.content(content);
+        }
+
+        ContentResponse response;
+        try {
+            response = request.send();
+        }
+        catch (TimeoutException ex) {
+            throw new IOException("Request timed out: " + method + " " + uri.getRawPath(), ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        int status = response.getStatus();
+        if (status / 100 != 2) {
+            throw new StorageHttpException(status, response.getHeaders().get("x-ms-error-code"),
+                    method + " " + uri.getRawPath() + " " + response.getContentAsString(),
+                    RetryPolicy.parseServerHint(response.getHeaders().get("x-ms-retry-after-ms"), response.getHeaders().get("Retry-After")));
+        }
+        return response;
+    }
+
+    /**
+     * Request body read from a staged block. Chunks of blocks staged in memory are sent as they are, without copying.
+     */
+    public static ContentProvider contentOf(StagedBlock block) throws IOException
+    {
+        if (block instanceof MemoryStagedBlock) {
+            List<ByteBuffer> buffers = ((MemoryStagedBlock) block).asByteBuffers();
+            return new ByteBufferContentProvider(buffers.toArray(new ByteBuffer[0]));
+        }
+        if (block instanceof BufferChainBlock) {
+            // gather write of the kept buffers
+            List<ByteBuffer> buffers = ((BufferChainBlock) block).asByteBuffers();
+            return new ByteBufferContentProvider(buffers.toArray(new ByteBuffer[0]));
+        }
+        final long length = block.length();
+        // the stream is closed by the provider when it reaches the end or fails
+        return new InputStreamContentProvider(block.openInputStream(), STREAM_BUFFER_SIZE)
+        {
+            @Override
+            public long getLength()
+            {
+                return length;
+            }
+        };
+    }
+
+    static String encodePath(String path)
+    {
+        StringBuilder encoded = new StringBuilder();
+        boolean first = true;
+        for (String segment : path.split("/", -1)) {
+            if (!first) {
+                encoded.append('/');
+            }
+            first = false;
+            encoded.append(encode(segment));
+        }
+        return encoded.toString();
+    }
+
+    static String encode(String value)
+    {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
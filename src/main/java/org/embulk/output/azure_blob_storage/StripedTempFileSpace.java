@@ -0,0 +1,239 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.TempFileSpace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link TempFileSpace} which spreads temp files across several local directories (typically one per disk),
+ * and measures how many bytes are written to each directory and how fast.
+ */
+public class StripedTempFileSpace extends TempFileSpace
+{
+    public enum Selection
+    {
+        ROUND_ROBIN, FREE_SPACE;
+
+        public static Selection of(String value)
+        {
+            try {
+                return valueOf(value.toUpperCase(Locale.ENGLISH));
+            }
+            catch (IllegalArgumentException ex) {
+                throw new ConfigException("temp_dir_selection must be ROUND_ROBIN or FREE_SPACE: " + value);
+            }
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(StripedTempFileSpace.class);
+    private static final String PREFIX = "embulk-output-azure_blob_storage";
+
+    private final List<Directory> directories = new ArrayList<>();
+    private final Selection selection;
+    private final List<File> createdFiles = Collections.synchronizedList(new ArrayList<>());
+    private int next;
+
+    public StripedTempFileSpace(List<String> paths, Selection selection)
+    {
+        this(paths, selection, 0);
+    }
+
+    /**
+     * @param taskIndex round robin of each task starts at a different directory, so that tasks which create
+     *                  few temp files still spread across the directories
+     */
+    public StripedTempFileSpace(List<String> paths, Selection selection, int taskIndex)
+    {
+        for (String path : paths) {
+            File dir = new File(path);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new UncheckedIOException(new IOException("Couldn't create temp directory " + path));
+            }
+            directories.add(new Directory(dir));
+        }
+        this.selection = selection;
+        this.next = Math.floorMod(taskIndex, directories.size());
+    }
+
+    @Override
+    public File createTempFile()
+    {
+        return createTempFile(PREFIX, ".tmp");
+    }
+
+    @Override
+    public File createTempFile(String fileExt)
+    {
+        return createTempFile(PREFIX, fileExt);
+    }
+
+    @Override
+    public File createTempFile(String prefix, String fileExt)
+    {
+        Directory dir = select();
+        try {
+            File file = Files.createTempFile(dir.path.toPath(), prefix, fileExt).toFile();
+            createdFiles.add(file);
+            dir.addFile();
+            return file;
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void cleanup()
+    {
+        synchronized (createdFiles) {
+            for (File file : createdFiles) {
+                if (file.exists() && !file.delete()) {
+                    logger.warn("Couldn't delete local file " + file.getAbsolutePath());
+                }
+            }
+            createdFiles.clear();
+        }
+    }
+
+    private synchronized Directory select()
+    {
+        if (selection == Selection.FREE_SPACE) {
+            Directory best = directories.get(0);
+            for (Directory dir : directories) {
+                if (dir.path.getUsableSpace() > best.path.getUsableSpace()) {
+                    best = dir;
+                }
+            }
+            return best;
+        }
+        Directory dir = directories.get(next);
+        next = (next + 1) % directories.size();
+        return dir;
+    }
+
+    private Directory directoryOf(File file)
+    {
+        for (Directory dir : directories) {
+            if (dir.path.equals(file.getParentFile())) {
+                return dir;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a buffered stream to write a temp file. Writes are measured if the file belongs to a {@link StripedTempFileSpace}.
+     */
+    public static OutputStream newOutputStream(TempFileSpace space, File file) throws FileNotFoundException
+    {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        if (space instanceof StripedTempFileSpace) {
+            Directory dir = ((StripedTempFileSpace) space).directoryOf(file);
+            if (dir != null) {
+                return new MeteredOutputStream(out, dir);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Adds per-directory statistics to the task report if the space is a {@link StripedTempFileSpace}.
+     */
+    public static void report(TempFileSpace space, TaskReport report)
+    {
+        if (!(space instanceof StripedTempFileSpace)) {
+            return;
+        }
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (Directory dir : ((StripedTempFileSpace) space).directories) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            synchronized (dir) {
+                entry.put("path", dir.path.getAbsolutePath());
+                entry.put("files", dir.files);
+                entry.put("bytes", dir.bytes);
+                entry.put("write_bytes_per_sec", dir.writeNanos > 0 ? (long) (dir.bytes * 1e9 / dir.writeNanos) : 0L);
+            }
+            logger.info("Temp directory {}: {} files, {} bytes, {}", entry.get("path"), entry.get("files"), entry.get("bytes"),
+                    String.format("%.1f MB/s", ((Long) entry.get("write_bytes_per_sec")) / 1024.0 / 1024.0));
+            stats.add(entry);
+        }
+        report.set("temp_dirs", stats);
+    }
+
+    private static class Directory
+    {
+        private final File path;
+        private long files;
+        private long bytes;
+        private long writeNanos;
+
+        Directory(File path)
+        {
+            this.path = path;
+        }
+
+        synchronized void addFile()
+        {
+            files++;
+        }
+
+        synchronized void record(long bytes, long nanos)
+        {
+            this.bytes += bytes;
+            this.writeNanos += nanos;
+        }
+    }
+
+    private static class MeteredOutputStream extends FilterOutputStream
+    {
+        private final Directory dir;
+
+        MeteredOutputStream(OutputStream out, Directory dir)
+        {
+            super(out);
+            this.dir = dir;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            long start = System.nanoTime();
+            out.write(b);
+            dir.record(1, System.nanoTime() - start);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            dir.record(len, System.nanoTime() - start);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            long start = System.nanoTime();
+            out.flush();
+            dir.record(0, System.nanoTime() - start);
+        }
+    }
+}
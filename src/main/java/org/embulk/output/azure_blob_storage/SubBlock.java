@@ -0,0 +1,162 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A range of another staged block, read in place. The parent owns the content, so releasing a sub-block does nothing.
+ */
+public class SubBlock implements StagedBlock
+{
+    private final StagedBlock parent;
+    private final int index;
+    private final long offset;
+    private final long length;
+
+    public SubBlock(StagedBlock parent, int index, long offset, long length)
+    {
+        if (offset < 0 || length < 0 || offset + length > parent.length()) {
+            throw new IllegalArgumentException("Range " + offset + "+" + length + " is out of block " + parent.getName());
+        }
+        this.parent = parent;
+        this.index = index;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Cuts the block into ranges of {@code size} bytes. The last one may be shorter.
+     */
+    public static SubBlock[] split(StagedBlock parent, long size)
+    {
+        int count = (int) ((parent.length() + size - 1) / size);
+        SubBlock[] subBlocks = new SubBlock[count];
+        for (int i = 0; i < count; i++) {
+            long offset = i * size;
+            subBlocks[i] = new SubBlock(parent, i, offset, Math.min(size, parent.length() - offset));
+        }
+        return subBlocks;
+    }
+
+    public int getIndex()
+    {
+        return index;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        throw new UnsupportedOperationException("Sub-blocks are read only");
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException
+    {
+        InputStream in = parent.openInputStream();
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    in.close();
+                    throw new IOException("Block " + parent.getName() + " ended before offset " + offset);
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        return new RangeInputStream(in, length);
+    }
+
+    @Override
+    public void release()
+    {
+    }
+
+    @Override
+    public String getName()
+    {
+        return parent.getName() + "#" + index;
+    }
+
+    /**
+     * Reads up to {@code length} bytes of the underlying stream. {@code mark}/{@code reset} are passed through.
+     */
+    private static class RangeInputStream extends FilterInputStream
+    {
+        private long remaining;
+        private long markRemaining;
+
+        RangeInputStream(InputStream in, long length)
+        {
+            super(in);
+            this.remaining = length;
+            this.markRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public synchronized void mark(int readLimit)
+        {
+            in.mark(readLimit);
+            markRemaining = remaining;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException
+        {
+            in.reset();
+            remaining = markRemaining;
+        }
+    }
+}
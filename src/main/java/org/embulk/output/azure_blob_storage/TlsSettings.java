@@ -0,0 +1,247 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.embulk.config.ConfigException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * TLS security provider and cipher suites of the connections to the storage account.
+ *
+ * The storage SDK opens {@link HttpsURLConnection}s by itself, so its connections get the socket factory
+ * from a sending request listener of the {@link OperationContext}s which this plugin passes to each request.
+ * Other users of the SDK in the same JVM are not affected. The Jetty client gets the same {@link SSLContext}.
+ */
+public class TlsSettings
+{
+    private final Optional<String> providerName;
+    private final List<String> cipherSuites;
+    private final SSLContext sslContext;
+    private final String[] enabledCipherSuites;
+    private final SSLSocketFactory sdkSocketFactory;
+
+    private TlsSettings(Optional<String> providerName, List<String> cipherSuites)
+    {
+        this.providerName = providerName;
+        this.cipherSuites = cipherSuites;
+        if (isDefault()) {
+            this.sslContext = null;
+            this.enabledCipherSuites = null;
+            this.sdkSocketFactory = null;
+        }
+        else {
+            this.sslContext = newSslContext(providerName);
+            this.enabledCipherSuites = selectCipherSuites(cipherSuites, sslContext.getSupportedSSLParameters().getCipherSuites());
+            this.sdkSocketFactory = new CipherSuiteSocketFactory(sslContext.getSocketFactory(), enabledCipherSuites);
+        }
+    }
+
+    public static TlsSettings of(PluginTask task)
+    {
+        return new TlsSettings(task.getTlsProvider(), task.getTlsCipherSuites());
+    }
+
+    public boolean isDefault()
+    {
+        return !providerName.isPresent() && cipherSuites.isEmpty();
+    }
+
+    /**
+     * Identifies the settings, to share Jetty clients between tasks with the same settings.
+     */
+    public String key()
+    {
+        return providerName.orElse("") + "/" + String.join(":", cipherSuites);
+    }
+
+    /**
+     * Returns a context for one storage SDK operation, whose connections use these settings.
+     */
+    public OperationContext newOperationContext()
+    {
+        OperationContext context = new OperationContext();
+        if (sdkSocketFactory != null) {
+            context.getSendingRequestEventHandler().addListener(new StorageEvent<SendingRequestEvent>()
+            {
+                @Override
+                public void eventOccurred(SendingRequestEvent event)
+                {
+                    if (event.getConnectionObject() instanceof HttpsURLConnection) {
+                        ((HttpsURLConnection) event.getConnectionObject()).setSSLSocketFactory(sdkSocketFactory);
+                    }
+                }
+            });
+        }
+        return context;
+    }
+
+    public void configure(SslContextFactory factory)
+    {
+        if (isDefault()) {
+            return;
+        }
+        factory.setSslContext(sslContext);
+        if (!cipherSuites.isEmpty()) {
+            // the configured list is authoritative. don't let the default exclusions of Jetty filter it.
+            factory.setExcludeCipherSuites();
+            factory.setIncludeCipherSuites(enabledCipherSuites);
+        }
+    }
+
+    /**
+     * Returns an installed provider with the name, or a new instance of the {@link Provider} class with the name.
+     */
+    static Provider provider(String name)
+    {
+        Provider installed = Security.getProvider(name);
+        if (installed != null) {
+            return installed;
+        }
+        try {
+            Object provider = Class.forName(name).getDeclaredConstructor().newInstance();
+            if (!(provider instanceof Provider)) {
+                throw new ConfigException("tls_provider " + name + " is not a java.security.Provider");
+            }
+            return (Provider) provider;
+        }
+        catch (ClassNotFoundException ex) {
+            throw new ConfigException("tls_provider " + name + " is neither an installed security provider nor a class on the classpath");
+        }
+        catch (ReflectiveOperationException | LinkageError ex) {
+            throw new ConfigException("Couldn't create tls_provider " + name, ex);
+        }
+    }
+
+    private static SSLContext newSslContext(Optional<String> providerName)
+    {
+        try {
+            SSLContext context = providerName.isPresent()
+                    ? SSLContext.getInstance("TLS", provider(providerName.get()))
+                    : SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        }
+        catch (GeneralSecurityException ex) {
+            throw new ConfigException("Couldn't initialize TLS of tls_provider " + providerName.orElse("(default)"), ex);
+        }
+    }
+
+    /**
+     * Keeps the configured suites which the provider supports, in the configured order.
+     * Returns all supported suites when none are configured.
+     */
+    static String[] selectCipherSuites(List<String> configured, String[] supported)
+    {
+        if (configured.isEmpty()) {
+            return supported;
+        }
+        Set<String> supportedSet = new HashSet<>(Arrays.asList(supported));
+        List<String> selected = new ArrayList<>();
+        for (String suite : configured) {
+            if (supportedSet.contains(suite)) {
+                selected.add(suite);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new ConfigException("None of tls_cipher_suites is supported by the TLS provider: " + configured);
+        }
+        return selected.toArray(new String[0]);
+    }
+
+    /**
+     * Enables the cipher suites on each socket, preferring them in the given order.
+     */
+    static class CipherSuiteSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory delegate;
+        private final String[] cipherSuites;
+
+        CipherSuiteSocketFactory(SSLSocketFactory delegate, String[] cipherSuites)
+        {
+            this.delegate = delegate;
+            this.cipherSuites = cipherSuites;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return cipherSuites.clone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException
+        {
+            return configure(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+        {
+            return configure(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException
+        {
+            return configure(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+        {
+            return configure(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException
+        {
+            return configure(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+        {
+            return configure(delegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private Socket configure(Socket socket)
+        {
+            if (socket instanceof SSLSocket) {
+                SSLSocket sslSocket = (SSLSocket) socket;
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setCipherSuites(cipherSuites);
+                parameters.setUseCipherSuitesOrder(true);
+                sslSocket.setSSLParameters(parameters);
+            }
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.embulk.output.azure_blob_storage;
+
+/**
+ * Token bucket rate limiter shared by the upload threads.
+ *
+ * A request larger than the bucket capacity is allowed to borrow from the future, and the caller
+ * sleeps until the debt is paid back, so a single large block never blocks forever.
+ */
+public class TokenBucket
+{
+    private final double ratePerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double ratePerSecond)
+    {
+        this(ratePerSecond, ratePerSecond);
+    }
+
+    public TokenBucket(double ratePerSecond, double capacity)
+    {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("ratePerSecond must be positive");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public void acquire(double permits) throws InterruptedException
+    {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    /**
+     * Takes the permits and returns how long the caller must wait before using them, in nanoseconds.
+     */
+    synchronized long reserve(double permits)
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * ratePerSecond / 1e9);
+        lastRefillNanos = now;
+        tokens -= permits;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / ratePerSecond * 1e9);
+    }
+}
@@ -0,0 +1,174 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.TaskReport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-task byte counters and time spent in each stage, which are returned to the transaction through the {@link TaskReport}.
+ *
+ * Time outside of staging, upload and commit is reported as {@code upstream_seconds}. It is mostly spent
+ * by the input and the formatter before buffers arrive at {@code add()}.
+ *
+ * Counters may be updated from upload threads while the task thread stages the next data.
+ */
+public class TransferStats
+{
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private final AtomicLong skippedFiles = new AtomicLong();
+    private final List<WrittenBlob> writtenBlobs = Collections.synchronizedList(new ArrayList<>());
+    private final List<PackedSegment> packedSegments = Collections.synchronizedList(new ArrayList<>());
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong stagedBytes = new AtomicLong();
+    private final AtomicLong stagingNanos = new AtomicLong();
+    private final AtomicLong uploadNanos = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private final AtomicLong savedRequests = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final ProgressReporter.TaskProgress progress;
+
+    public TransferStats()
+    {
+        this(new ProgressReporter.TaskProgress(0));
+    }
+
+    public TransferStats(ProgressReporter.TaskProgress progress)
+    {
+        this.progress = progress;
+    }
+
+    public ProgressReporter.TaskProgress getProgress()
+    {
+        return progress;
+    }
+
+    public void addTransferred(long bytes)
+    {
+        transferredBytes.addAndGet(bytes);
+        progress.addUploaded(bytes);
+    }
+
+    public void addSkipped(long bytes)
+    {
+        skippedBytes.addAndGet(bytes);
+        skippedFiles.incrementAndGet();
+    }
+
+    public void addStaged(long bytes, long nanos)
+    {
+        stagedBytes.addAndGet(bytes);
+        stagingNanos.addAndGet(nanos);
+        progress.addStaged(bytes);
+    }
+
+    public void addUploadNanos(long nanos)
+    {
+        uploadNanos.addAndGet(nanos);
+    }
+
+    public void addCommitNanos(long nanos)
+    {
+        commitNanos.addAndGet(nanos);
+    }
+
+    public void addSavedRequests(long requests)
+    {
+        savedRequests.addAndGet(requests);
+    }
+
+    public void addReused(long bytes)
+    {
+        reusedBytes.addAndGet(bytes);
+        savedRequests.incrementAndGet();
+    }
+
+    public void addWrittenBlob(WrittenBlob blob)
+    {
+        writtenBlobs.add(blob);
+    }
+
+    public void addPackedSegment(PackedSegment segment)
+    {
+        packedSegments.add(segment);
+    }
+
+    public List<WrittenBlob> getWrittenBlobs()
+    {
+        return writtenBlobs;
+    }
+
+    public long getTransferredBytes()
+    {
+        return transferredBytes.get();
+    }
+
+    public long getSkippedBytes()
+    {
+        return skippedBytes.get();
+    }
+
+    public long getSkippedFiles()
+    {
+        return skippedFiles.get();
+    }
+
+    public long getStagedBytes()
+    {
+        return stagedBytes.get();
+    }
+
+    public TaskReport toTaskReport(TaskReport report)
+    {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long upstreamNanos = Math.max(0, elapsedNanos - stagingNanos.get() - uploadNanos.get() - commitNanos.get());
+        synchronized (writtenBlobs) {
+            report.set("written_blobs", new ArrayList<>(writtenBlobs));
+        }
+        synchronized (packedSegments) {
+            report.set("packed_segments", new ArrayList<>(packedSegments));
+        }
+        return report.set("staged_bytes", stagedBytes.get())
+                .set("elapsed_seconds", seconds(elapsedNanos))
+                .set("upstream_seconds", seconds(upstreamNanos))
+                .set("staging_seconds", seconds(stagingNanos.get()))
+                .set("staging_bytes_per_sec", bytesPerSecond(stagedBytes.get(), stagingNanos.get()))
+                .set("upload_seconds", seconds(uploadNanos.get()))
+                .set("upload_bytes_per_sec", bytesPerSecond(transferredBytes.get(), uploadNanos.get()))
+                .set("commit_seconds", seconds(commitNanos.get()))
+                .set("bytes_per_sec", bytesPerSecond(stagedBytes.get(), elapsedNanos))
+                .set("transferred_bytes", transferredBytes.get())
+                .set("skipped_bytes", skippedBytes.get())
+                .set("skipped_files", skippedFiles.get())
+                .set("saved_requests", savedRequests.get())
+                .set("reused_bytes", reusedBytes.get())
+                .set("retries", progress.getRetries());
+    }
+
+    /**
+     * One line summary of where the time went, logged at the end of each task.
+     */
+    public String summary()
+    {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long staged = stagedBytes.get();
+        return String.format("%d bytes in %.2fs (%.1f MB/s). staging %.2fs (%.1f MB/s), upload %.2fs (%.1f MB/s), commit %.2fs",
+                staged, seconds(elapsedNanos), bytesPerSecond(staged, elapsedNanos) / 1024.0 / 1024.0,
+                seconds(stagingNanos.get()), bytesPerSecond(staged, stagingNanos.get()) / 1024.0 / 1024.0,
+                seconds(uploadNanos.get()), bytesPerSecond(transferredBytes.get(), uploadNanos.get()) / 1024.0 / 1024.0,
+                seconds(commitNanos.get()));
+    }
+
+    private static double seconds(long nanos)
+    {
+        return nanos / 1e9;
+    }
+
+    private static long bytesPerSecond(long bytes, long nanos)
+    {
+        return nanos > 0 ? (long) (bytes * 1e9 / nanos) : 0L;
+    }
+}
@@ -0,0 +1,260 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures upload throughput with test blocks of several sizes and concurrency levels, and picks the fastest settings.
+ *
+ * Test blocks are staged to a blob which is never committed. The caller discards them when the calibration ends.
+ */
+public class UploadCalibrator
+{
+    static final int[] BLOCK_SIZES = {4 * 1024 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024};
+    static final int[] CONCURRENCY_LEVELS = {2, 4, 8, 16};
+    // recalibrate when a probe differs from the stored throughput by more than this ratio
+    static final double THROUGHPUT_TOLERANCE = 0.25;
+    // the calibrated staging_memory_budget is at most this fraction of the max heap
+    static final double MAX_HEAP_FRACTION = 0.25;
+    static final int BLOCK_SIZE_CONCURRENCY = 4;
+    // smallest calibration_bytes, which fits the smallest block size with BLOCK_SIZE_CONCURRENCY
+    static final long MIN_BYTES_PER_MEASUREMENT = (long) BLOCK_SIZES[0] * BLOCK_SIZE_CONCURRENCY;
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadCalibrator.class);
+
+    private final CloudBlockBlob blob;
+    private final long bytesPerMeasurement;
+    private final File tempFile;
+    private final TlsSettings tls;
+    private final AtomicInteger blockSequence = new AtomicInteger();
+    private byte[] data = new byte[0];
+
+    /**
+     * @param blob blob which receives the uncommitted test blocks
+     * @param bytesPerMeasurement approximate bytes sent by each measurement
+     * @param tempFile local file to measure staging to disk, or null
+     * @param tls settings of the connections to the storage account
+     */
+    public UploadCalibrator(CloudBlockBlob blob, long bytesPerMeasurement, File tempFile, TlsSettings tls)
+    {
+        this.blob = blob;
+        this.bytesPerMeasurement = bytesPerMeasurement;
+        this.tempFile = tempFile;
+        this.tls = tls;
+    }
+
+    public Result calibrate() throws InterruptedException
+    {
+        int bestBlockSize = BLOCK_SIZES[0];
+        long best = 0;
+        for (int blockSize : BLOCK_SIZES) {
+            if (!fits(blockSize, BLOCK_SIZE_CONCURRENCY)) {
+                logger.info("Calibration: skipped block size {} MB, which doesn't fit in calibration_bytes", blockSize / 1024 / 1024);
+                continue;
+            }
+            long measured = measure(blockSize, BLOCK_SIZE_CONCURRENCY);
+            logger.info("Calibration: block size {} MB, {} concurrent uploads: {} MB/s",
+                    blockSize / 1024 / 1024, BLOCK_SIZE_CONCURRENCY, measured / 1024 / 1024);
+            if (measured > best) {
+                best = measured;
+                bestBlockSize = blockSize;
+            }
+        }
+
+        int bestConcurrency = BLOCK_SIZE_CONCURRENCY;
+        int highestConcurrency = BLOCK_SIZE_CONCURRENCY;
+        for (int concurrency : CONCURRENCY_LEVELS) {
+            if (concurrency == BLOCK_SIZE_CONCURRENCY || !fits(bestBlockSize, concurrency)) {
+                continue;
+            }
+            highestConcurrency = Math.max(highestConcurrency, concurrency);
+            long measured = measure(bestBlockSize, concurrency);
+            logger.info("Calibration: block size {} MB, {} concurrent uploads: {} MB/s",
+                    bestBlockSize / 1024 / 1024, concurrency, measured / 1024 / 1024);
+            // more connections must pay off clearly
+            if (measured > best * 1.05 || (measured > best && concurrency < bestConcurrency)) {
+                best = measured;
+                bestConcurrency = concurrency;
+            }
+        }
+
+        long stagingMemoryBudget = 0;
+        long diskBytesPerSecond = measureDisk(bestBlockSize);
+        if (diskBytesPerSecond > 0 && diskBytesPerSecond < best) {
+            // the local disk would be the bottleneck. keep the blocks in flight in memory.
+            long wanted = (long) bestBlockSize * bestConcurrency * 2;
+            stagingMemoryBudget = maxStagingMemoryBudget(wanted, Runtime.getRuntime().maxMemory());
+            if (stagingMemoryBudget < wanted) {
+                logger.info("Calibration: staging_memory_budget is limited to {}% of the max heap, {} bytes instead of {}",
+                        (int) (MAX_HEAP_FRACTION * 100), stagingMemoryBudget, wanted);
+            }
+        }
+        // the limit applies to all tasks uploading to the account. don't cap them at a concurrency
+        // which was still getting faster, because one blob measured alone says nothing beyond it.
+        int concurrency = limitedConcurrency(bestConcurrency, highestConcurrency);
+        Result result = new Result(bestBlockSize, concurrency, stagingMemoryBudget, best);
+        logger.info("Calibration result: {}", result);
+        return result;
+    }
+
+    /**
+     * Measures the throughput of the given settings with a single round.
+     */
+    public long probe(int blockSize, int concurrency) throws InterruptedException
+    {
+        return measure(blockSize, (int) Math.max(1, Math.min(concurrency, bytesPerMeasurement / blockSize)));
+    }
+
+    /**
+     * Whether one round of the concurrent uploads fits in calibration_bytes.
+     */
+    boolean fits(int blockSize, int concurrency)
+    {
+        return (long) blockSize * concurrency <= bytesPerMeasurement;
+    }
+
+    /**
+     * The best concurrency as max_concurrent_uploads, or 0 (no limit) if it was the highest one measured.
+     */
+    static int limitedConcurrency(int bestConcurrency, int highestConcurrency)
+    {
+        return bestConcurrency < highestConcurrency ? bestConcurrency : 0;
+    }
+
+    static long maxStagingMemoryBudget(long wanted, long maxHeap)
+    {
+        return Math.min(wanted, (long) (maxHeap * MAX_HEAP_FRACTION));
+    }
+
+    public static boolean hasChanged(long stored, long probed)
+    {
+        return Math.abs(probed - stored) > stored * THROUGHPUT_TOLERANCE;
+    }
+
+    private long measure(int blockSize, int concurrency) throws InterruptedException
+    {
+        final byte[] block = testData(blockSize);
+        int blocks = (int) Math.max(concurrency, bytesPerMeasurement / blockSize);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < blocks; i++) {
+                futures.add(executor.submit(() -> {
+                    String blockId = Base64.getEncoder().encodeToString(
+                            String.format("calibration-%010d", blockSequence.getAndIncrement()).getBytes(StandardCharsets.UTF_8));
+                    blob.uploadBlock(blockId, new ByteArrayInputStream(block, 0, blockSize), blockSize, null, null, tls.newOperationContext());
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+            return (long) ((double) blocks * blockSize * 1e9 / nanos);
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long measureDisk(int blockSize)
+    {
+        if (tempFile == null) {
+            return 0;
+        }
+        byte[] block = testData(blockSize);
+        try {
+            long start = System.nanoTime();
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(block, 0, blockSize);
+                out.getFD().sync();
+            }
+            long nanos = System.nanoTime() - start;
+            long bytesPerSecond = (long) (blockSize * 1e9 / nanos);
+            logger.info("Calibration: local disk {} MB/s", bytesPerSecond / 1024 / 1024);
+            return bytesPerSecond;
+        }
+        catch (IOException ex) {
+            logger.warn("Couldn't measure local disk", ex);
+            return 0;
+        }
+        finally {
+            if (!tempFile.delete()) {
+                logger.warn("Couldn't delete local file " + tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private byte[] testData(int size)
+    {
+        if (data.length < size) {
+            // random content so that nothing on the way can compress it
+            data = new byte[size];
+            new Random(size).nextBytes(data);
+        }
+        return data;
+    }
+
+    public static class Result
+    {
+        private final int blockSize;
+        private final int concurrency;
+        private final long stagingMemoryBudget;
+        private final long bytesPerSecond;
+
+        public Result(int blockSize, int concurrency, long stagingMemoryBudget, long bytesPerSecond)
+        {
+            this.blockSize = blockSize;
+            this.concurrency = concurrency;
+            this.stagingMemoryBudget = stagingMemoryBudget;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public int getBlockSize()
+        {
+            return blockSize;
+        }
+
+        public int getConcurrency()
+        {
+            return concurrency;
+        }
+
+        public long getStagingMemoryBudget()
+        {
+            return stagingMemoryBudget;
+        }
+
+        public long getBytesPerSecond()
+        {
+            return bytesPerSecond;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("block_size: %d, max_concurrent_uploads: %d, staging_memory_budget: %d, %d MB/s",
+                    blockSize, concurrency, stagingMemoryBudget, bytesPerSecond / 1024 / 1024);
+        }
+    }
+}
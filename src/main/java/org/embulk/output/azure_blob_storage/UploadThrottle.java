@@ -0,0 +1,113 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.StorageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+
+/**
+ * Throttling shared by all tasks that upload to the same storage account in this JVM.
+ *
+ * Combines the adaptive concurrency limit with optional bandwidth and requests-per-second caps.
+ */
+public class UploadThrottle
+{
+    private static final Logger logger = LoggerFactory.getLogger(UploadThrottle.class);
+    private static final ConcurrentMap<String, UploadThrottle> INSTANCES = new ConcurrentHashMap<>();
+    private static final long DECREASE_COOLDOWN_MILLIS = 1000;
+
+    private final AdaptiveConcurrencyLimiter concurrency;
+    private final TokenBucket bandwidth;
+    private final TokenBucket requests;
+
+    UploadThrottle(int maxConcurrentUploads, long maxBandwidth, double maxRequestsPerSecond)
+    {
+        this.concurrency = new AdaptiveConcurrencyLimiter(maxConcurrentUploads, DECREASE_COOLDOWN_MILLIS);
+        this.bandwidth = maxBandwidth > 0 ? new TokenBucket(maxBandwidth) : null;
+        this.requests = maxRequestsPerSecond > 0 ? new TokenBucket(maxRequestsPerSecond, Math.max(1, maxRequestsPerSecond)) : null;
+    }
+
+    public static UploadThrottle of(PluginTask task)
+    {
+        return of(task.getAccountName(), task);
+    }
+
+    /**
+     * Throttle of another account, e.g. of an extra destination, with the limits of the task.
+     */
+    public static UploadThrottle of(String accountName, PluginTask task)
+    {
+        return INSTANCES.computeIfAbsent(accountName, name -> new UploadThrottle(
+                task.getMaxConcurrentUploads(),
+                task.getMaxBandwidth().orElse(0L),
+                task.getMaxRequestsPerSecond().orElse(0.0)));
+    }
+
+    /**
+     * Waits until a request of the given body size may be sent. The returned permit must be closed.
+     */
+    public Permit acquire(long bytes) throws InterruptedException
+    {
+        if (requests != null) {
+            requests.acquire(1);
+        }
+        if (bandwidth != null && bytes > 0) {
+            bandwidth.acquire(bytes);
+        }
+        concurrency.acquire();
+        return new Permit();
+    }
+
+    public int getConcurrencyLimit()
+    {
+        return concurrency.getLimit();
+    }
+
+    static boolean isThrottled(Exception exception)
+    {
+        if (exception instanceof StorageException) {
+            int status = ((StorageException) exception).getHttpStatusCode();
+            return status == 503 || status == 500;
+        }
+        if (exception instanceof StorageHttpException) {
+            int status = ((StorageHttpException) exception).getStatusCode();
+            return status == 503 || status == 500;
+        }
+        return false;
+    }
+
+    public class Permit implements AutoCloseable
+    {
+        private boolean released;
+
+        private Permit()
+        {
+        }
+
+        public void success()
+        {
+            concurrency.onSuccess();
+        }
+
+        public void failure(Exception exception)
+        {
+            if (isThrottled(exception)) {
+                concurrency.onThrottle();
+                logger.warn("Azure Blob Storage is throttling requests. Concurrent uploads are limited to {}.", concurrency.getLimit());
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            if (!released) {
+                released = true;
+                concurrency.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A blob committed by a task, returned in the {@code written_blobs} attribute of the task report.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WrittenBlob
+{
+    private final String name;
+    private final long size;
+    private final int blockCount;
+    private final String contentMd5;
+
+    @JsonCreator
+    public WrittenBlob(
+            @JsonProperty("name") String name,
+            @JsonProperty("size") long size,
+            @JsonProperty("block_count") int blockCount,
+            @JsonProperty("content_md5") String contentMd5)
+    {
+        this.name = name;
+        this.size = size;
+        this.blockCount = blockCount;
+        this.contentMd5 = contentMd5;
+    }
+
+    @JsonProperty("name")
+    public String getName()
+    {
+        return name;
+    }
+
+    @JsonProperty("size")
+    public long getSize()
+    {
+        return size;
+    }
+
+    @JsonProperty("block_count")
+    public int getBlockCount()
+    {
+        return blockCount;
+    }
+
+    /**
+     * Base64 encoded MD5 of the content, or null if it was not computed.
+     */
+    @JsonProperty("content_md5")
+    public String getContentMd5()
+    {
+        return contentMd5;
+    }
+}
@@ -0,0 +1,118 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BlobStore} which keeps blobs in memory, following the block semantics of the service.
+ */
+public class InMemoryBlobStore implements BlobStore
+{
+    private final Map<String, Map<String, byte[]>> uncommitted = new HashMap<>();
+    private final Map<String, Map<String, byte[]>> committed = new HashMap<>();
+    private final Map<String, byte[]> blobs = new HashMap<>();
+    private final Map<String, BlobAttributes> attributes = new HashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    public synchronized void stageBlock(String blobName, String blockId, StagedBlock block) throws IOException
+    {
+        requests.incrementAndGet();
+        uncommitted.computeIfAbsent(blobName, name -> new HashMap<>()).put(blockId, read(block));
+    }
+
+    @Override
+    public synchronized void putBlob(String blobName, StagedBlock content, BlobAttributes attributes) throws IOException
+    {
+        requests.incrementAndGet();
+        blobs.put(blobName, read(content));
+        this.attributes.put(blobName, attributes);
+        uncommitted.remove(blobName);
+        committed.remove(blobName);
+    }
+
+    @Override
+    public synchronized void commitBlockList(String blobName, List<BlockEntry> blocks, BlobAttributes attributes) throws IOException
+    {
+        requests.incrementAndGet();
+        Map<String, byte[]> staged = uncommitted.getOrDefault(blobName, new HashMap<>());
+        Map<String, byte[]> previous = committed.getOrDefault(blobName, new HashMap<>());
+        Map<String, byte[]> next = new HashMap<>();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (BlockEntry block : blocks) {
+            byte[] data;
+            switch (block.getSearchMode()) {
+                case COMMITTED:
+                    data = previous.get(block.getId());
+                    break;
+                case UNCOMMITTED:
+                    data = staged.get(block.getId());
+                    break;
+                default:
+                    data = staged.containsKey(block.getId()) ? staged.get(block.getId()) : previous.get(block.getId());
+                    break;
+            }
+            if (data == null) {
+                throw new IOException("InvalidBlockList: " + block.getId());
+            }
+            next.put(block.getId(), data);
+            content.write(data);
+        }
+        committed.put(blobName, next);
+        uncommitted.remove(blobName);
+        blobs.put(blobName, content.toByteArray());
+        this.attributes.put(blobName, attributes);
+    }
+
+    @Override
+    public synchronized void delete(List<String> blobNames)
+    {
+        for (String name : blobNames) {
+            blobs.remove(name);
+            committed.remove(name);
+            uncommitted.remove(name);
+            attributes.remove(name);
+        }
+    }
+
+    public synchronized byte[] get(String blobName)
+    {
+        return blobs.get(blobName);
+    }
+
+    public synchronized BlobAttributes getAttributes(String blobName)
+    {
+        return attributes.get(blobName);
+    }
+
+    public synchronized int committedBlockCount(String blobName)
+    {
+        Map<String, byte[]> blocks = committed.get(blobName);
+        return blocks != null ? blocks.size() : 0;
+    }
+
+    public int requestCount()
+    {
+        return requests.get();
+    }
+
+    private static byte[] read(StagedBlock block) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = block.openInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
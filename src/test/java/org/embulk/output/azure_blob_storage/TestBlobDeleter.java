@@ -0,0 +1,44 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.TaskReport;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.junit.Assert.assertEquals;
+
+public class TestBlobDeleter
+{
+    @Test
+    public void testPartition()
+    {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            names.add("out/sample_" + i);
+        }
+        List<List<String>> batches = BlobDeleter.partition(names, BlobDeleter.MAX_BATCH_SIZE);
+        assertEquals(3, batches.size());
+        assertEquals(256, batches.get(0).size());
+        assertEquals(256, batches.get(1).size());
+        assertEquals(88, batches.get(2).size());
+        assertEquals("out/sample_256", batches.get(1).get(0));
+    }
+
+    @Test
+    public void testUploadedBlobsOfTaskReports()
+    {
+        TaskReport report0 = CONFIG_MAPPER_FACTORY.newTaskReport()
+                .set("uploaded_blobs", Arrays.asList("a/0", "a/1"))
+                .set("destination_uploaded_blobs", Arrays.asList(Arrays.asList("copy/a/0"), Arrays.asList()));
+        TaskReport report1 = CONFIG_MAPPER_FACTORY.newTaskReport()
+                .set("uploaded_blobs", Arrays.asList("b/0"));
+        List<List<String>> uploaded = AzureBlobStorageFileOutputPlugin.uploadedBlobs(Arrays.asList(report0, report1), 2);
+        assertEquals(3, uploaded.size());
+        assertEquals(Arrays.asList("a/0", "a/1", "b/0"), uploaded.get(0));
+        assertEquals(Arrays.asList("copy/a/0"), uploaded.get(1));
+        assertEquals(Arrays.asList(), uploaded.get(2));
+    }
+}
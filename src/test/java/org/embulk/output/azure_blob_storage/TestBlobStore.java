@@ -0,0 +1,203 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.TempFileSpace;
+import org.embulk.spi.TempFileSpaceImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER;
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs {@link BlockBlobFileOutput} against {@link InMemoryBlobStore}, without a storage account.
+ */
+public class TestBlobStore
+{
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void testMultipleBlocks() throws Exception
+    {
+        InMemoryBlobStore store = new InMemoryBlobStore();
+        BlockBlobFileOutput output = newOutput(store, config().set("single_put_threshold", 0));
+        Field blockSize = output.getClass().getDeclaredField("blockSize");
+        blockSize.setAccessible(true);
+        blockSize.set(output, 100);
+
+        byte[] line = "1,32864,2015-01-27 19:23:49,20150127,embulk\n".getBytes(StandardCharsets.UTF_8);
+        byte[] expected = new byte[line.length * 10];
+        output.nextFile();
+        for (int i = 0; i < 10; i++) {
+            output.add(Buffer.wrap(line));
+            System.arraycopy(line, 0, expected, i * line.length, line.length);
+        }
+        output.finish();
+        output.close();
+
+        assertArrayEquals(expected, store.get("out/sample_000.00.csv"));
+        assertEquals(store.committedBlockCount("out/sample_000.00.csv") + 1, store.requestCount());
+    }
+
+    @Test
+    public void testFailingBlockIsUploadedAsSubBlocks() throws Exception
+    {
+        // a link which fails every request larger than 1MB
+        InMemoryBlobStore store = new InMemoryBlobStore()
+        {
+            @Override
+            public void stageBlock(String blobName, String blockId, StagedBlock block) throws IOException
+            {
+                if (block.length() > 1024 * 1024) {
+                    throw new IOException("Connection reset");
+                }
+                super.stageBlock(blobName, blockId, block);
+            }
+        };
+        BlockBlobFileOutput output = newOutput(store, config()
+                .set("single_put_threshold", 0)
+                .set("sub_block_fallback_after", 1)
+                .set("sub_block_size", 1024 * 1024));
+        Field blockSize = output.getClass().getDeclaredField("blockSize");
+        blockSize.setAccessible(true);
+        blockSize.set(output, 3 * 1024 * 1024);
+
+        byte[] chunk = new byte[64 * 1024];
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        output.nextFile();
+        for (int i = 0; i < 60; i++) {
+            Arrays.fill(chunk, (byte) i);
+            output.add(Buffer.wrap(chunk.clone()));
+            expected.write(chunk);
+        }
+        output.finish();
+        output.close();
+
+        assertArrayEquals(expected.toByteArray(), store.get("out/sample_000.00.csv"));
+        // the first block of 3MB + 64KB is committed as 4 sub-blocks, then the rest as one block
+        assertEquals(5, store.committedBlockCount("out/sample_000.00.csv"));
+    }
+
+    @Test
+    public void testKeepBuffers() throws Exception
+    {
+        InMemoryBlobStore store = new InMemoryBlobStore();
+        BlockBlobFileOutput output = newOutput(store, config()
+                .set("keep_buffers", true)
+                .set("staging_memory_budget", 1024 * 1024)
+                .set("single_put_threshold", 200)
+                .set("write_manifest", true));
+        Field blockSize = output.getClass().getDeclaredField("blockSize");
+        blockSize.setAccessible(true);
+        blockSize.set(output, 1000);
+
+        byte[] line = "1,32864,2015-01-27 19:23:49,20150127,embulk\n".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        output.nextFile();
+        for (int i = 0; i < 100; i++) {
+            output.add(Buffer.wrap(line.clone()));
+            expected.write(line);
+        }
+        output.finish();
+        output.close();
+
+        assertArrayEquals(expected.toByteArray(), store.get("out/sample_000.00.csv"));
+        MessageDigest md5 = BlobFingerprint.newDigest();
+        md5.update(expected.toByteArray());
+        assertEquals(BlobFingerprint.encode(md5),
+                store.getAttributes("out/sample_000.00.csv").getMetadata().get(BlobFingerprint.METADATA_KEY));
+    }
+
+    @Test
+    public void testSmallBlobWithFingerprint() throws Exception
+    {
+        InMemoryBlobStore store = new InMemoryBlobStore();
+        BlockBlobFileOutput output = newOutput(store, config().set("write_manifest", true));
+        byte[] content = "a,b\n".getBytes(StandardCharsets.UTF_8);
+        output.nextFile();
+        output.add(Buffer.wrap(content));
+        output.finish();
+        output.close();
+
+        assertArrayEquals(content, store.get("out/sample_000.00.csv"));
+        assertEquals(1, store.requestCount());
+        BlobAttributes attributes = store.getAttributes("out/sample_000.00.csv");
+        assertEquals(attributes.getContentMd5(), attributes.getMetadata().get(BlobFingerprint.METADATA_KEY));
+    }
+
+    @Test
+    public void testBlobTags() throws Exception
+    {
+        InMemoryBlobStore store = new InMemoryBlobStore();
+        ConfigSource config = config().setNested("blob_tags", CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("run", "${run_id}")
+                .set("file", "${task_index}.${file_index}")
+                .set("bytes", "${bytes}"));
+        BlockBlobFileOutput output = newOutput(store, config);
+        output.nextFile();
+        output.add(Buffer.wrap("a,b\n".getBytes(StandardCharsets.UTF_8)));
+        output.finish();
+        output.close();
+
+        BlobAttributes attributes = store.getAttributes("out/sample_000.00.csv");
+        assertEquals("test", attributes.getTags().get("run"));
+        assertEquals("0.0", attributes.getTags().get("file"));
+        assertEquals("4", attributes.getTags().get("bytes"));
+    }
+
+    @Test
+    public void testAbortDeletesUploadedBlobs() throws Exception
+    {
+        InMemoryBlobStore store = new InMemoryBlobStore();
+        BlockBlobFileOutput output = newOutput(store, config().set("delete_on_failure", true));
+        output.nextFile();
+        output.add(Buffer.wrap("a,b\n".getBytes(StandardCharsets.UTF_8)));
+        output.nextFile();
+        output.add(Buffer.wrap("c,d\n".getBytes(StandardCharsets.UTF_8)));
+        output.abort();
+        output.close();
+
+        assertNull(store.get("out/sample_000.00.csv"));
+    }
+
+    private BlockBlobFileOutput newOutput(BlobStore store, ConfigSource config) throws Exception
+    {
+        PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        CloudBlobClient client = new CloudBlobClient(URI.create("https://account.blob.core.windows.net"),
+                new StorageCredentialsAccountAndKey("account", task.getAccountKey()));
+        TempFileSpace tempFileSpace = TempFileSpaceImpl.with(testFolder.newFolder().toPath(), "output-azure-blob");
+        return new BlockBlobFileOutput(client, store, task, 0, tempFileSpace);
+    }
+
+    private static ConfigSource config()
+    {
+        byte[] key = new byte[64];
+        Arrays.fill(key, (byte) 1);
+        return CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("account_name", "account")
+                .set("account_key", Base64.getEncoder().encodeToString(key))
+                .set("container", "container")
+                .set("path_prefix", "out/sample_")
+                .set("file_ext", "csv")
+                .set("blob_type", "BLOCK_BLOB")
+                .set("run_id", "test");
+    }
+}
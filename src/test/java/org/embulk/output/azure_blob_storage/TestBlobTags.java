@@ -0,0 +1,50 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestBlobTags
+{
+    @Test
+    public void testExpandVariables()
+    {
+        Map<String, String> templates = new LinkedHashMap<>();
+        templates.put("table", "orders");
+        templates.put("run", "${run_id}");
+        templates.put("part", "${task_index}-${file_index}");
+        Map<String, String> variables = new HashMap<>();
+        variables.put("run_id", "0f9c/run#1");
+        variables.put("task_index", "3");
+        variables.put("file_index", "0");
+
+        Map<String, String> tags = new BlobTags(templates).expand(variables);
+        assertEquals("orders", tags.get("table"));
+        assertEquals("0f9c/run_1", tags.get("run"));
+        assertEquals("3-0", tags.get("part"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownVariable()
+    {
+        new BlobTags(singleTag("rows", "${rows}"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testInvalidValue()
+    {
+        new BlobTags(singleTag("table", "orders;drop"));
+    }
+
+    private static Map<String, String> singleTag(String key, String value)
+    {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(key, value);
+        return tags;
+    }
+}
@@ -0,0 +1,98 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestContentDefinedChunker
+{
+    @Test
+    public void testBlockSizesAreWithinBounds()
+    {
+        byte[] data = randomBytes(1024 * 1024, 1);
+        List<Integer> sizes = sizes(cut(data, 1));
+        int total = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            assertTrue(sizes.get(i) <= 16 * 1024);
+            if (i < sizes.size() - 1) {
+                assertTrue(sizes.get(i) >= 1024);
+            }
+            total += sizes.get(i);
+        }
+        assertEquals(data.length, total);
+    }
+
+    @Test
+    public void testBoundariesDontDependOnBufferSize()
+    {
+        byte[] data = randomBytes(512 * 1024, 2);
+        assertEquals(cut(data, data.length), cut(data, 1000));
+    }
+
+    @Test
+    public void testBoundariesResyncAfterInsertion()
+    {
+        byte[] data = randomBytes(512 * 1024, 3);
+        byte[] inserted = new byte[data.length + 100];
+        System.arraycopy(data, 0, inserted, 0, 1000);
+        System.arraycopy(data, 1000, inserted, 1100, data.length - 1000);
+
+        List<Integer> original = cut(data, 4096);
+        List<Integer> shifted = cut(inserted, 4096);
+        // the last boundaries are the same content shifted by the inserted bytes
+        int last = original.get(original.size() - 1);
+        assertTrue(shifted.contains(last + 100));
+        int common = 0;
+        for (int boundary : original) {
+            if (shifted.contains(boundary + 100)) {
+                common++;
+            }
+        }
+        assertTrue(common >= original.size() - 2);
+    }
+
+    private static List<Integer> cut(byte[] data, int bufferSize)
+    {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(1024, 4096, 16 * 1024);
+        List<Integer> boundaries = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += bufferSize) {
+            int end = Math.min(data.length, offset + bufferSize);
+            int from = offset;
+            while (from < end) {
+                int boundary = chunker.next(data, from, end);
+                if (boundary < 0) {
+                    break;
+                }
+                boundaries.add(boundary);
+                from = boundary;
+            }
+        }
+        boundaries.add(data.length);
+        return boundaries;
+    }
+
+    private static List<Integer> sizes(List<Integer> boundaries)
+    {
+        List<Integer> sizes = new ArrayList<>();
+        int previous = 0;
+        for (int boundary : boundaries) {
+            if (boundary > previous) {
+                sizes.add(boundary - previous);
+            }
+            previous = boundary;
+        }
+        return sizes;
+    }
+
+    private static byte[] randomBytes(int size, long seed)
+    {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,15 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+public class TestJfrEvents
+{
+    @Test
+    public void testEventsWithoutRecording()
+    {
+        // must be no-ops whether JFR exists or not
+        JfrEvents.BLOCK_UPLOAD.begin().set(0, "blob").set(1, "id").set(2, 10L).set(3, 1).commit();
+        JfrEvents.STAGING_STALL.begin().set(0, "blob").set(1, 10L).commit();
+        JfrEvents.COMMIT_BLOCK_LIST.begin().set(0, "blob").set(1, 3).commit();
+    }
+}
@@ -0,0 +1,61 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.config.TaskReport;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestManifestWriter
+{
+    @Test
+    public void testCollectFromTaskReports()
+    {
+        TransferStats stats0 = new TransferStats();
+        stats0.addWrittenBlob(new WrittenBlob("out/sample_000.00.csv", 100, 1, "md5-0"));
+        TransferStats stats1 = new TransferStats();
+        stats1.addWrittenBlob(new WrittenBlob("out/sample_001.00.csv", 200, 2, null));
+        TaskReport empty = CONFIG_MAPPER_FACTORY.newTaskReport();
+
+        List<WrittenBlob> blobs = ManifestWriter.collect(Arrays.asList(
+                stats0.toTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport()),
+                stats1.toTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport()),
+                empty));
+
+        assertEquals(2, blobs.size());
+        assertEquals("out/sample_000.00.csv", blobs.get(0).getName());
+        assertEquals("md5-0", blobs.get(0).getContentMd5());
+        assertEquals(2, blobs.get(1).getBlockCount());
+        assertNull(blobs.get(1).getContentMd5());
+    }
+
+    @Test
+    public void testJson() throws Exception
+    {
+        byte[] json = ManifestWriter.toJson(Arrays.asList(
+                new WrittenBlob("a.csv", 100, 1, "md5-a"),
+                new WrittenBlob("b.csv", 50, 1, null)));
+        JsonNode root = new ObjectMapper().readTree(json);
+        assertEquals(2, root.get("blob_count").asInt());
+        assertEquals(150, root.get("total_size").asLong());
+        assertEquals("a.csv", root.get("blobs").get(0).get("name").asText());
+        assertEquals(false, root.get("blobs").get(1).has("content_md5"));
+    }
+
+    @Test
+    public void testCsv()
+    {
+        byte[] csv = ManifestWriter.toCsv(Arrays.asList(
+                new WrittenBlob("a.csv", 100, 1, "md5-a"),
+                new WrittenBlob("b,c.csv", 50, 2, null)));
+        assertEquals("name,size,block_count,content_md5\na.csv,100,1,md5-a\n\"b,c.csv\",50,2,\n",
+                new String(csv, StandardCharsets.UTF_8));
+    }
+}
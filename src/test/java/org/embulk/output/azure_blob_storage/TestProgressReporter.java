@@ -0,0 +1,35 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestProgressReporter
+{
+    @Test
+    public void testDisabled()
+    {
+        assertNull(ProgressReporter.start("run-disabled", 0, 0));
+    }
+
+    @Test
+    public void testCountersAreReportedWithStats()
+    {
+        ProgressReporter reporter = ProgressReporter.start("run-progress", 3600, 1000);
+        try {
+            TransferStats stats = new TransferStats(ProgressReporter.taskProgress("run-progress", 0));
+            stats.addStaged(300, 0);
+            stats.addTransferred(200);
+            stats.getProgress().addRetry();
+            stats.getProgress().requestStarted();
+            stats.getProgress().requestFinished();
+
+            assertEquals(1L, (long) stats.toTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport()).get(Long.class, "retries"));
+        }
+        finally {
+            reporter.stop();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRetryPolicy
+{
+    @Test
+    public void testClassifiesStatusCodes()
+    {
+        assertTrue(RetryPolicy.isRetryable(new StorageHttpException(503, "ServerBusy", "")));
+        assertTrue(RetryPolicy.isRetryable(new StorageHttpException(500, "InternalError", "")));
+        assertTrue(RetryPolicy.isRetryable(new StorageHttpException(429, null, "")));
+        assertTrue(RetryPolicy.isRetryable(new StorageHttpException(408, null, "")));
+        assertFalse(RetryPolicy.isRetryable(new StorageHttpException(403, "AuthenticationFailed", "")));
+        assertFalse(RetryPolicy.isRetryable(new StorageHttpException(400, "InvalidBlockId", "")));
+        assertFalse(RetryPolicy.isRetryable(new StorageHttpException(404, "BlobNotFound", "")));
+        assertTrue(RetryPolicy.isRetryable(new IOException("Connection reset")));
+        assertFalse(RetryPolicy.isRetryable(new RuntimeException(new StorageHttpException(403, "AuthenticationFailed", ""))));
+    }
+
+    @Test
+    public void testWaitHasFullJitterAndHonorsServerHint()
+    {
+        for (int i = 0; i < 1000; i++) {
+            long wait = RetryPolicy.waitMillis(1, 0);
+            assertTrue(wait >= 0 && wait <= RetryPolicy.INITIAL_WAIT_MILLIS);
+            assertTrue(RetryPolicy.waitMillis(100, 0) <= RetryPolicy.MAX_WAIT_MILLIS);
+            assertTrue(RetryPolicy.waitMillis(1, 2000) >= 2000);
+        }
+        assertEquals(RetryPolicy.MAX_SERVER_HINT_MILLIS, RetryPolicy.waitMillis(1, Long.MAX_VALUE));
+        assertEquals(1500, RetryPolicy.parseServerHint("1500", "10"));
+        assertEquals(10000, RetryPolicy.parseServerHint(null, "10"));
+        assertEquals(0, RetryPolicy.parseServerHint(null, "Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+    @Test
+    public void testInterruptIsNotRetried()
+    {
+        RetryPolicy policy = new RetryPolicy("test", 10, 0, ProgressReporter.taskProgress(null, 0));
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            policy.run(() -> {
+                calls.incrementAndGet();
+                throw new InterruptedException();
+            });
+            fail();
+        }
+        catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof InterruptedException);
+        }
+        // clears the flag for the following tests
+        assertTrue(Thread.interrupted());
+        assertEquals(1, calls.get());
+        assertFalse(RetryPolicy.isRetryable(new RuntimeException(new InterruptedException())));
+    }
+
+    @Test
+    public void testOnlyAttemptLimitIsSignaled()
+    {
+        RetryPolicy policy = new RetryPolicy("test", 10, 1, ProgressReporter.taskProgress(null, 0));
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            policy.runAtMost(() -> {
+                calls.incrementAndGet();
+                throw new IOException("Connection reset");
+            }, 1);
+            fail();
+        }
+        catch (RetryPolicy.AttemptLimitException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        assertEquals(1, calls.get());
+
+        // the budget of 1 retry runs out before the 5 attempts
+        calls.set(0);
+        try {
+            policy.runAtMost(() -> {
+                calls.incrementAndGet();
+                throw new IOException("Connection reset");
+            }, 5);
+            fail();
+        }
+        catch (RetryPolicy.AttemptLimitException ex) {
+            fail();
+        }
+        catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testPermanentErrorIsNotRetried()
+    {
+        ProgressReporter.TaskProgress progress = ProgressReporter.taskProgress(null, 0);
+        RetryPolicy policy = new RetryPolicy("test", 10, 0, progress);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            policy.run(() -> {
+                calls.incrementAndGet();
+                throw new StorageHttpException(403, "AuthenticationFailed", "");
+            });
+            fail();
+        }
+        catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof StorageHttpException);
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, progress.getRetries());
+    }
+
+    @Test
+    public void testBudgetIsSharedByRequests()
+    {
+        ProgressReporter.TaskProgress progress = ProgressReporter.taskProgress(null, 0);
+        RetryPolicy policy = new RetryPolicy("test", 10, 2, progress);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("ok", policy.run(() -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new StorageHttpException(503, "ServerBusy", "", 1);
+            }
+            return "ok";
+        }));
+        try {
+            policy.run(() -> {
+                throw new StorageHttpException(503, "ServerBusy", "", 1);
+            });
+            fail();
+        }
+        catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof StorageHttpException);
+        }
+        assertEquals(2, progress.getRetries());
+    }
+}
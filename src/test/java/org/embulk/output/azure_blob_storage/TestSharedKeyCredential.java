@@ -0,0 +1,62 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSharedKeyCredential
+{
+    private static final String KEY = Base64.getEncoder().encodeToString("secret-key".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void testStringToSign() throws Exception
+    {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-version", "2020-02-10");
+        headers.put("x-ms-date", "Mon, 19 Oct 2026 00:00:00 GMT");
+        headers.put("Content-Length", "10");
+        headers.put("Content-Type", "application/octet-stream");
+        URI uri = URI.create("https://account.dfs.core.windows.net/fs/out/sample%20a.csv?position=0&action=append");
+
+        String expected = "PATCH\n\n\n10\n\napplication/octet-stream\n\n\n\n\n\n\n"
+                + "x-ms-date:Mon, 19 Oct 2026 00:00:00 GMT\nx-ms-version:2020-02-10\n"
+                + "/account/fs/out/sample%20a.csv\naction:append\nposition:0";
+        assertEquals("SharedKey account:" + hmac(expected),
+                new SharedKeyCredential("account", KEY).authorization("PATCH", uri, headers));
+    }
+
+    @Test
+    public void testZeroContentLengthIsEmpty() throws Exception
+    {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Length", "0");
+        URI uri = URI.create("https://account.blob.core.windows.net/container/blob");
+
+        String expected = "PUT\n\n\n\n\n\n\n\n\n\n\n\n/account/container/blob";
+        assertEquals("SharedKey account:" + hmac(expected),
+                new SharedKeyCredential("account", KEY).authorization("PUT", uri, headers));
+    }
+
+    @Test
+    public void testEncodePath()
+    {
+        assertEquals("out/sample%20a%2B.csv", StorageRestClient.encodePath("out/sample a+.csv"));
+        assertEquals("out.embulk-1/", StorageRestClient.encodePath("out.embulk-1/"));
+    }
+
+    private static String hmac(String toSign) throws Exception
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(Base64.getDecoder().decode(KEY), "HmacSHA256"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(toSign.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,168 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.spi.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.embulk.output.azure_blob_storage.TestHelper.convertInputStreamToByte;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestStagedBlock
+{
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    // the budget is shared by the JVM, so tests which change it put it back
+    private long savedLimit;
+
+    @Before
+    public void saveMemoryBudget()
+    {
+        savedLimit = StagingMemoryBudget.getLimit();
+    }
+
+    @After
+    public void restoreMemoryBudget()
+    {
+        StagingMemoryBudget.setLimit(savedLimit);
+    }
+
+    @Test
+    public void testMemoryBlockAcrossChunks() throws Exception
+    {
+        byte[] data = randomBytes(3 * 1024 * 1024 + 17);
+        StagedBlock block = new MemoryStagedBlock("test", 0);
+        assertRoundTrip(block, data);
+    }
+
+    @Test
+    public void testMemoryBlockByteBuffers() throws Exception
+    {
+        byte[] data = randomBytes(2 * 1024 + 5);
+        MemoryStagedBlock block = new MemoryStagedBlock("test", 0, 1024);
+        try (OutputStream out = block.getOutputStream()) {
+            out.write(data);
+        }
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : block.asByteBuffers()) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            joined.write(bytes);
+        }
+        assertEquals(3, block.asByteBuffers().size());
+        assertArrayEquals(data, joined.toByteArray());
+        block.release();
+    }
+
+    @Test
+    public void testFileBlock() throws Exception
+    {
+        byte[] data = randomBytes(100 * 1024 + 3);
+        StagedBlock block = new FileStagedBlock(testFolder.newFile());
+        assertRoundTrip(block, data);
+    }
+
+    @Test
+    public void testBufferChainBlock() throws Exception
+    {
+        byte[] data = randomBytes(10 * 1024);
+        long used = StagingMemoryBudget.getUsed();
+        StagingMemoryBudget.setLimit(used + 6 * 1024);
+        assertEquals(true, StagingMemoryBudget.tryReserve(6 * 1024));
+        BufferChainBlock block = new BufferChainBlock("test", 6 * 1024);
+        for (int offset = 0; offset < data.length; offset += 2 * 1024) {
+            block.append(Buffer.wrap(Arrays.copyOfRange(data, offset, offset + 2 * 1024)));
+        }
+        // buffers beyond the reservation are copied
+        assertEquals(3, block.getBufferCount());
+        assertEquals(true, block.isFull());
+        assertEquals(data.length, block.length());
+        try (InputStream in = block.openInputStream()) {
+            assertEquals(100, in.skip(100));
+            in.mark(Integer.MAX_VALUE);
+            byte[] rest = convertInputStreamToByte(in);
+            assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), rest);
+            in.reset();
+            assertArrayEquals(rest, convertInputStreamToByte(in));
+        }
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : block.asByteBuffers()) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            joined.write(bytes);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        block.release();
+        assertEquals(used, StagingMemoryBudget.getUsed());
+    }
+
+    @Test
+    public void testSubBlocks() throws Exception
+    {
+        byte[] data = randomBytes(10 * 1024 + 7);
+        StagedBlock block = new FileStagedBlock(testFolder.newFile());
+        try (OutputStream out = block.getOutputStream()) {
+            out.write(data);
+        }
+        SubBlock[] subBlocks = SubBlock.split(block, 4 * 1024);
+        assertEquals(3, subBlocks.length);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (SubBlock subBlock : subBlocks) {
+            try (InputStream in = subBlock.openInputStream()) {
+                in.mark(Integer.MAX_VALUE);
+                byte[] bytes = convertInputStreamToByte(in);
+                in.reset();
+                assertArrayEquals(bytes, convertInputStreamToByte(in));
+                assertEquals(subBlock.length(), bytes.length);
+                joined.write(bytes);
+            }
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        block.release();
+    }
+
+    @Test
+    public void testMemoryBlockSpillsWhenBudgetRunsOut() throws Exception
+    {
+        long used = StagingMemoryBudget.getUsed();
+        StagingMemoryBudget.setLimit(used + 100);
+        assertEquals(true, StagingMemoryBudget.tryReserve(100));
+        assertEquals(false, StagingMemoryBudget.tryReserve(1));
+        StagingMemoryBudget.release(100);
+        assertEquals(used, StagingMemoryBudget.getUsed());
+    }
+
+    private static void assertRoundTrip(StagedBlock block, byte[] data) throws Exception
+    {
+        try (OutputStream out = block.getOutputStream()) {
+            out.write(data, 0, 10);
+            out.write(data, 10, data.length - 10);
+        }
+        assertEquals(data.length, block.length());
+        try (InputStream in = block.openInputStream()) {
+            in.mark(Integer.MAX_VALUE);
+            assertArrayEquals(data, convertInputStreamToByte(in));
+            in.reset();
+            assertArrayEquals(data, convertInputStreamToByte(in));
+        }
+        block.release();
+    }
+
+    private static byte[] randomBytes(int size)
+    {
+        byte[] bytes = new byte[size];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+}
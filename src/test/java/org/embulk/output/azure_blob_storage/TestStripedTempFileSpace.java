@@ -0,0 +1,66 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.TaskReport;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestStripedTempFileSpace
+{
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void testTasksStartAtDifferentDirectories() throws Exception
+    {
+        File dir1 = testFolder.newFolder();
+        File dir2 = testFolder.newFolder();
+        for (int taskIndex = 0; taskIndex < 4; taskIndex++) {
+            StripedTempFileSpace space = new StripedTempFileSpace(
+                    Arrays.asList(dir1.getPath(), dir2.getPath()), StripedTempFileSpace.Selection.ROUND_ROBIN, taskIndex);
+            assertEquals(taskIndex % 2 == 0 ? dir1 : dir2, space.createTempFile().getParentFile());
+            space.cleanup();
+        }
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception
+    {
+        File dir1 = testFolder.newFolder();
+        File dir2 = testFolder.newFolder();
+        StripedTempFileSpace space = new StripedTempFileSpace(
+                Arrays.asList(dir1.getPath(), dir2.getPath()), StripedTempFileSpace.Selection.ROUND_ROBIN);
+
+        File first = space.createTempFile();
+        File second = space.createTempFile();
+        File third = space.createTempFile();
+        assertEquals(dir1, first.getParentFile());
+        assertEquals(dir2, second.getParentFile());
+        assertEquals(dir1, third.getParentFile());
+
+        try (OutputStream out = StripedTempFileSpace.newOutputStream(space, first)) {
+            out.write(new byte[100]);
+        }
+        TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+        StripedTempFileSpace.report(space, report);
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> dirs = report.get(List.class, "temp_dirs");
+        assertEquals(2, dirs.size());
+        assertEquals(100, ((Number) dirs.get(0).get("bytes")).longValue());
+        assertEquals(2, ((Number) dirs.get(0).get("files")).longValue());
+
+        space.cleanup();
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+    }
+}
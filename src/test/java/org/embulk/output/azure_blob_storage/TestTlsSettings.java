@@ -0,0 +1,34 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestTlsSettings
+{
+    @Test
+    public void testCipherSuitesKeepConfiguredOrder()
+    {
+        String[] supported = {"TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_RSA_WITH_AES_128_CBC_SHA"};
+        String[] selected = TlsSettings.selectCipherSuites(
+                Arrays.asList("TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_UNKNOWN", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"), supported);
+        assertArrayEquals(new String[] {"TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"}, selected);
+        assertArrayEquals(supported, TlsSettings.selectCipherSuites(Collections.<String>emptyList(), supported));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testNoSupportedCipherSuite()
+    {
+        TlsSettings.selectCipherSuites(Collections.singletonList("TLS_UNKNOWN"), new String[] {"TLS_RSA_WITH_AES_128_CBC_SHA"});
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownProvider()
+    {
+        TlsSettings.provider("org.example.NoSuchProvider");
+    }
+}
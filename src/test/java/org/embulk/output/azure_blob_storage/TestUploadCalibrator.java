@@ -0,0 +1,49 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestUploadCalibrator
+{
+    @Test
+    public void testSmallDeviationKeepsSettings()
+    {
+        assertFalse(UploadCalibrator.hasChanged(100_000_000L, 100_000_000L));
+        assertFalse(UploadCalibrator.hasChanged(100_000_000L, 80_000_000L));
+        assertFalse(UploadCalibrator.hasChanged(100_000_000L, 120_000_000L));
+    }
+
+    @Test
+    public void testLargeDeviationRecalibrates()
+    {
+        assertTrue(UploadCalibrator.hasChanged(100_000_000L, 70_000_000L));
+        assertTrue(UploadCalibrator.hasChanged(100_000_000L, 130_000_000L));
+    }
+
+    @Test
+    public void testMeasurementsFitInCalibrationBytes()
+    {
+        UploadCalibrator calibrator = new UploadCalibrator(null, 64L * 1024 * 1024, null, null);
+        assertTrue(calibrator.fits(16 * 1024 * 1024, 4));
+        assertFalse(calibrator.fits(64 * 1024 * 1024, 4));
+        assertFalse(calibrator.fits(16 * 1024 * 1024, 16));
+    }
+
+    @Test
+    public void testStagingMemoryBudgetIsClampedToHeap()
+    {
+        long gb = 1024L * 1024 * 1024;
+        assertEquals(gb / 4, UploadCalibrator.maxStagingMemoryBudget(2 * gb, gb));
+        assertEquals(64L * 1024 * 1024, UploadCalibrator.maxStagingMemoryBudget(64L * 1024 * 1024, 4 * gb));
+    }
+
+    @Test
+    public void testConcurrencyIsLimitedOnlyWhenThroughputLevelsOff()
+    {
+        assertEquals(4, UploadCalibrator.limitedConcurrency(4, 16));
+        assertEquals(0, UploadCalibrator.limitedConcurrency(16, 16));
+    }
+}
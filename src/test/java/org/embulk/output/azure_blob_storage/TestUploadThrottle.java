@@ -0,0 +1,56 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestUploadThrottle
+{
+    @Test
+    public void testConcurrencyIsHalvedOnThrottle() throws Exception
+    {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 0);
+        for (int i = 0; i < 8; i++) {
+            limiter.acquire();
+        }
+        limiter.onThrottle();
+        assertEquals(4, limiter.getLimit());
+        limiter.onThrottle();
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testConcurrencyGrowsOnSuccess() throws Exception
+    {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 0);
+        limiter.acquire();
+        limiter.onThrottle();
+        assertEquals(1, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testUnboundedLimitIsHalvedFromInFlight() throws Exception
+    {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(0, 0);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        limiter.onThrottle();
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void testTokenBucketBorrowsForLargeRequests()
+    {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertEquals(0, bucket.reserve(1000));
+        long waitNanos = bucket.reserve(500);
+        assertTrue(waitNanos > 400000000L);
+        assertTrue(waitNanos <= 500000000L);
+    }
+}